@@ -0,0 +1,257 @@
+package digilib.batch;
+
+/*
+ * #%L
+ * DerivativeGenerator -- command line tool to create prescaled images.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.conf.DigilibConfiguration;
+import digilib.image.DerivativeWorker;
+import digilib.io.FileOps;
+import digilib.io.FileOps.FileClass;
+
+/**
+ * Command line tool that creates the prescaled images for the scaled
+ * directories of the basedir-list.
+ * 
+ * Walks the directory tree of the hi-res base directory and creates a scaled
+ * JPEG for each image file and each scaled directory using
+ * {@link DerivativeWorker} on all processor cores. Images that are newer than
+ * their hi-res file are skipped so the tool can be run again on a growing
+ * image tree or after an interruption. Hi-res files that are not bigger than
+ * a size leave a marker file in the scaled directory so they are skipped
+ * without being read again.
+ * 
+ * Usage:
+ * 
+ * <pre>
+ * java digilib.batch.DerivativeGenerator [-t threads] [-q quality] hiresdir scaleddir:size [scaleddir:size ...]
+ * </pre>
+ * 
+ * The DocuImage class and subsample-minimum are read from digilib.properties
+ * in the class path.
+ * 
+ * @author casties
+ * 
+ */
+public class DerivativeGenerator {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DerivativeGenerator.class);
+
+    protected File baseDir;
+
+    protected File[] scaledDirs;
+
+    protected int[] sizes;
+
+    protected int quality;
+
+    protected float minSubsample;
+
+    protected ThreadPoolExecutor executor;
+
+    /** number of checked image files */
+    protected AtomicInteger numFiles = new AtomicInteger(0);
+
+    /** number of written derivatives */
+    protected AtomicInteger numWritten = new AtomicInteger(0);
+
+    /** number of failed image files */
+    protected AtomicInteger numErrors = new AtomicInteger(0);
+
+    /**
+     * Create a DerivativeGenerator.
+     * 
+     * @param baseDir
+     *            the hi-res base directory
+     * @param scaledDirs
+     *            the base directories for the derivatives
+     * @param sizes
+     *            the sizes of the derivatives
+     * @param threads
+     *            the number of worker threads
+     * @param quality
+     *            the scaling quality
+     * @param minSubsample
+     *            the minimum subsampling factor
+     */
+    public DerivativeGenerator(File baseDir, File[] scaledDirs, int[] sizes, int threads, int quality,
+            float minSubsample) {
+        this.baseDir = baseDir;
+        this.scaledDirs = scaledDirs;
+        this.sizes = sizes;
+        this.quality = quality;
+        this.minSubsample = minSubsample;
+        // bounded queue: the walking thread runs jobs itself when the queue is full
+        executor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * 4), new ThreadPoolExecutor.CallerRunsPolicy());
+    }
+
+    /**
+     * Processes all image files under the base directory and waits until all
+     * derivatives are written.
+     * 
+     * @throws InterruptedException
+     */
+    public void run() throws InterruptedException {
+        long startTime = System.currentTimeMillis();
+        walk(baseDir, "");
+        executor.shutdown();
+        executor.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+        logger.info("DerivativeGenerator: checked " + numFiles + " files, wrote " + numWritten + " images, "
+                + numErrors + " errors in " + (System.currentTimeMillis() - startTime) + "ms");
+    }
+
+    /**
+     * Processes all image files in the directory <code>dir</code> with the
+     * path <code>path</code> and its subdirectories.
+     * 
+     * @param dir
+     * @param path
+     */
+    protected void walk(File dir, String path) {
+        File[] files = dir.listFiles();
+        if (files == null) {
+            logger.error("Unable to read directory " + dir);
+            return;
+        }
+        // process in the same order as the servlet
+        Arrays.sort(files);
+        for (File f : files) {
+            String fn = f.getName();
+            if (fn.startsWith(".")) {
+                continue;
+            }
+            String fp = (path.length() > 0) ? path + "/" + fn : fn;
+            if (f.isDirectory()) {
+                walk(f, fp);
+            } else if (FileOps.classForFilename(fn) == FileClass.IMAGE) {
+                numFiles.incrementAndGet();
+                processFile(f, fp);
+            }
+        }
+    }
+
+    /**
+     * Submits a DerivativeWorker for the image file <code>f</code> with the
+     * path <code>path</code> if any derivative needs to be written.
+     * 
+     * @param f
+     * @param path
+     */
+    protected void processFile(final File f, String path) {
+        File[] targets = new File[scaledDirs.length];
+        boolean update = false;
+        for (int i = 0; i < scaledDirs.length; ++i) {
+            targets[i] = DerivativeWorker.getDerivativeFile(scaledDirs[i], path);
+            update |= DerivativeWorker.needsUpdate(f, targets[i]);
+        }
+        if (!update) {
+            return;
+        }
+        final DerivativeWorker worker = new DerivativeWorker(f, targets, sizes, quality, minSubsample);
+        executor.execute(new Runnable() {
+            public void run() {
+                try {
+                    numWritten.addAndGet(worker.call());
+                } catch (Exception e) {
+                    logger.error("Error processing " + f + ": " + e);
+                    numErrors.incrementAndGet();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return the number of failed image files
+     */
+    public int getErrors() {
+        return numErrors.get();
+    }
+
+    protected static void usage() {
+        System.err.println("usage: DerivativeGenerator [-t threads] [-q quality] hiresdir scaleddir:size [scaleddir:size ...]");
+        System.exit(2);
+    }
+
+    /**
+     * @param args
+     */
+    public static void main(String[] args) {
+        DigilibConfiguration config = new DigilibConfiguration();
+        config.readConfig();
+        config.configure();
+        int threads = Runtime.getRuntime().availableProcessors();
+        int quality = config.getAsInt("default-quality");
+        int argi = 0;
+        try {
+            while (argi < args.length && args[argi].startsWith("-")) {
+                if (args[argi].equals("-t") && argi + 1 < args.length) {
+                    threads = Integer.parseInt(args[argi + 1]);
+                } else if (args[argi].equals("-q") && argi + 1 < args.length) {
+                    quality = Integer.parseInt(args[argi + 1]);
+                } else {
+                    usage();
+                }
+                argi += 2;
+            }
+            if (args.length - argi < 2 || threads < 1) {
+                usage();
+            }
+            File baseDir = new File(args[argi++]);
+            if (!baseDir.isDirectory()) {
+                System.err.println("Not a directory: " + baseDir);
+                System.exit(2);
+            }
+            int numDirs = args.length - argi;
+            File[] scaledDirs = new File[numDirs];
+            int[] sizes = new int[numDirs];
+            for (int i = 0; i < numDirs; ++i) {
+                String arg = args[argi + i];
+                int sep = arg.lastIndexOf(':');
+                if (sep < 1) {
+                    usage();
+                }
+                scaledDirs[i] = new File(arg.substring(0, sep));
+                sizes[i] = Integer.parseInt(arg.substring(sep + 1));
+            }
+            DerivativeGenerator gen = new DerivativeGenerator(baseDir, scaledDirs, sizes, threads, quality,
+                    config.getAsFloat("subsample-minimum"));
+            gen.run();
+            System.exit(gen.getErrors() > 0 ? 1 : 0);
+        } catch (NumberFormatException e) {
+            usage();
+        } catch (InterruptedException e) {
+            System.exit(1);
+        }
+    }
+
+}
@@ -25,6 +25,7 @@ package digilib.conf;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
@@ -36,8 +37,13 @@ import javax.imageio.ImageIO;
 import org.apache.log4j.BasicConfigurator;
 import org.apache.log4j.Logger;
 
+import digilib.image.BufferedImagePool;
 import digilib.image.DocuImage;
 import digilib.image.DocuImageFactory;
+import digilib.image.ImageLoaderDocuImage;
+import digilib.io.DocuDirectory;
+import digilib.io.ImageFile;
+import digilib.io.ImageHeaderIndex;
 import digilib.util.Parameter;
 import digilib.util.ParameterMap;
 
@@ -85,6 +91,28 @@ public class DigilibConfiguration extends ParameterMap {
         newParameter("max-image-size", new Integer(0), null, 'f');
         // allow image toolkit to use disk cache
         newParameter("img-diskcache-allowed", Boolean.FALSE, null, 'f');
+        // let ImageIO cache streams in temporary files
+        newParameter("img-imageio-filecache", Boolean.FALSE, null, 'f');
+        // directory for the ImageIO cache files (empty means system temp directory)
+        newParameter("img-imageio-cachedir", "", null, 'f');
+        // read image files through memory-mapped streams
+        newParameter("img-mapped-input", Boolean.TRUE, null, 'f');
+        // directory for the persistent index of image headers (empty means no index)
+        newParameter("img-header-index-dir", "", null, 'f');
+        // threads for identifying the image files of a new directory in the background (0 means off)
+        newParameter("dir-identify-threads", new Integer(0), null, 'f');
+        // additional threads for rendering bands of big images in parallel (0 means off)
+        newParameter("img-parallel-threads", new Integer(0), null, 'f');
+        // size of the pool of reusable image buffers in MB (0 means no pool)
+        newParameter("img-buffer-pool-size", new Integer(0), null, 'f');
+        // JPEG compression quality from 0 to 1 (0 means automatic)
+        newParameter("img-jpeg-quality", new Float(0), null, 'f');
+        // write progressive JPEGs
+        newParameter("img-jpeg-progressive", Boolean.FALSE, null, 'f');
+        // use chroma subsampling in JPEGs
+        newParameter("img-jpeg-subsampling", Boolean.TRUE, null, 'f');
+        // PNG compression level from 0 to 9 (-1 means writer default)
+        newParameter("img-png-compression", new Integer(-1), null, 'f');
         // default type of error message (image, text, code)
         newParameter("default-errmsg-type", "image", null, 'f');
         // prefix for IIIF image API paths (used by DigilibRequest)
@@ -176,10 +204,32 @@ public class DigilibConfiguration extends ParameterMap {
         } catch (ClassNotFoundException e) {
             logger.error("Error setting DocuImage class!");
         }
-        // disk cache for image toolkit
-        boolean dc = getAsBoolean("img-diskcache-allowed");
-        // TODO: methods for all toolkits?
-        ImageIO.setUseCache(dc);
+        // file cache for ImageIO streams
+        ImageIO.setUseCache(getAsBoolean("img-imageio-filecache"));
+        String cacheDir = getAsString("img-imageio-cachedir");
+        if (cacheDir != null && cacheDir.length() > 0) {
+            try {
+                ImageIO.setCacheDirectory(new File(cacheDir));
+            } catch (IllegalArgumentException e) {
+                logger.error("Invalid ImageIO cache directory: " + cacheDir);
+            }
+        }
+        // memory-mapped input streams
+        ImageFile.setMappedInput(getAsBoolean("img-mapped-input"));
+        // persistent index of image headers
+        String indexDir = getAsString("img-header-index-dir");
+        if (indexDir != null && indexDir.length() > 0) {
+            ImageHeaderIndex.setIndexDir(new File(indexDir));
+        }
+        // background identification of new directories
+        DocuDirectory.setIdentifyThreads(getAsInt("dir-identify-threads"));
+        // threads for parallel rendering
+        ImageLoaderDocuImage.setParallelThreads(getAsInt("img-parallel-threads"));
+        // pool of image buffers
+        int poolSize = getAsInt("img-buffer-pool-size");
+        if (poolSize > 0) {
+            ImageLoaderDocuImage.setImagePool(new BufferedImagePool(poolSize * 1024L * 1024L));
+        }
     }
 
     /**
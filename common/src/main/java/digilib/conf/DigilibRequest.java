@@ -139,6 +139,8 @@ public class DigilibRequest extends ParameterMap {
         newParameter("scale", new Float(1), null, 's');
         // color conversion operation
         newParameter("colop", "", null, 's');
+        // JPEG quality in percent (0 = default)
+        newParameter("jq", new Integer(0), null, 's');
 
         /*
          * Parameters of type 'i' are not exchanged between client and server,
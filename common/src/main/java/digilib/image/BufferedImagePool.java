@@ -0,0 +1,240 @@
+package digilib.image;
+
+/*
+ * #%L
+ * BufferedImagePool -- pool of reusable image buffers.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.DataBuffer;
+import java.awt.image.DataBufferByte;
+import java.awt.image.DataBufferInt;
+import java.awt.image.DataBufferUShort;
+import java.awt.image.Raster;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of reusable image buffers for the destination images of image
+ * operations.
+ * 
+ * Buffers are kept by image type and size class. The width and height of a
+ * buffer are rounded up to a multiple of the bucket size so an image can use
+ * a slightly bigger buffer. Images from the pool are cleared. The total size
+ * of the idle buffers is limited.
+ * 
+ * Only buffers of images created by getImage() are returned to the pool. The
+ * image must not be used after releaseImage().
+ * 
+ * @author casties
+ * 
+ */
+public class BufferedImagePool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(BufferedImagePool.class);
+
+    /** width and height of buffers are multiples of this */
+    protected static int bucketSize = 64;
+
+    /** idle buffers by type and size class */
+    protected ConcurrentMap<String, BlockingQueue<DataBuffer>> pools = new ConcurrentHashMap<String, BlockingQueue<DataBuffer>>();
+
+    /** small images with the ColorModel and SampleModel by image type */
+    protected ConcurrentMap<Integer, BufferedImage> prototypes = new ConcurrentHashMap<Integer, BufferedImage>();
+
+    /** buffers handed out by getImage() with their size class key */
+    protected Map<DataBuffer, String> lent = Collections.synchronizedMap(new WeakHashMap<DataBuffer, String>());
+
+    /** maximum size of the idle buffers in bytes */
+    protected long maxBytes;
+
+    /** size of the idle buffers in bytes */
+    protected AtomicLong idleBytes = new AtomicLong(0);
+
+    /** number of buffers taken from the pool */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of newly created buffers */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Create a BufferedImagePool that keeps at most <code>maxBytes</code> of
+     * idle buffers.
+     * 
+     * @param maxBytes
+     */
+    public BufferedImagePool(long maxBytes) {
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Returns a cleared image of the size and type using a buffer from the
+     * pool or a new buffer.
+     * 
+     * @param width
+     * @param height
+     * @param type
+     *            BufferedImage type
+     * @return
+     */
+    public BufferedImage getImage(int width, int height, int type) {
+        if (type == BufferedImage.TYPE_CUSTOM || type == BufferedImage.TYPE_BYTE_BINARY
+                || type == BufferedImage.TYPE_BYTE_INDEXED) {
+            // no shared ColorModel
+            return new BufferedImage(width, height, type);
+        }
+        BufferedImage proto = prototypes.get(type);
+        if (proto == null) {
+            proto = new BufferedImage(1, 1, type);
+            prototypes.putIfAbsent(type, proto);
+        }
+        int bw = (width + bucketSize - 1) / bucketSize * bucketSize;
+        int bh = (height + bucketSize - 1) / bucketSize * bucketSize;
+        String key = type + ":" + bw + "x" + bh;
+        DataBuffer buffer = null;
+        BlockingQueue<DataBuffer> pool = pools.get(key);
+        if (pool != null) {
+            buffer = pool.poll();
+        }
+        if (buffer != null) {
+            hits.incrementAndGet();
+            idleBytes.addAndGet(-getBytes(buffer));
+            clear(buffer);
+        } else {
+            misses.incrementAndGet();
+            buffer = proto.getSampleModel().createCompatibleSampleModel(bw, bh).createDataBuffer();
+            if (getBytes(buffer) > maxBytes) {
+                // too big for the pool
+                return new BufferedImage(width, height, type);
+            }
+        }
+        lent.put(buffer, key);
+        // raster of the requested size using the (bigger) buffer
+        SampleModel sm = proto.getSampleModel().createCompatibleSampleModel(width, height);
+        WritableRaster raster = Raster.createWritableRaster(sm, buffer, null);
+        ColorModel cm = proto.getColorModel();
+        return new BufferedImage(cm, raster, cm.isAlphaPremultiplied(), null);
+    }
+
+    /**
+     * Returns the buffer of the image to the pool if it was created by
+     * getImage(). The image must not be used afterwards.
+     * 
+     * @param img
+     */
+    public void releaseImage(BufferedImage img) {
+        DataBuffer buffer = img.getRaster().getDataBuffer();
+        String key = lent.remove(buffer);
+        if (key == null) {
+            // not ours
+            return;
+        }
+        long bytes = getBytes(buffer);
+        if (idleBytes.addAndGet(bytes) > maxBytes) {
+            // pool is full
+            idleBytes.addAndGet(-bytes);
+            return;
+        }
+        BlockingQueue<DataBuffer> pool = pools.get(key);
+        if (pool == null) {
+            pool = new LinkedBlockingQueue<DataBuffer>();
+            BlockingQueue<DataBuffer> p = pools.putIfAbsent(key, pool);
+            if (p != null) {
+                pool = p;
+            }
+        }
+        pool.offer(buffer);
+    }
+
+    /**
+     * Returns the size of the DataBuffer in bytes.
+     * 
+     * @param db
+     * @return
+     */
+    protected static long getBytes(DataBuffer db) {
+        return (long) db.getSize() * db.getNumBanks() * DataBuffer.getDataTypeSize(db.getDataType()) / 8;
+    }
+
+    /**
+     * Sets all data of the DataBuffer to 0.
+     * 
+     * @param db
+     */
+    protected static void clear(DataBuffer db) {
+        for (int b = 0; b < db.getNumBanks(); ++b) {
+            if (db instanceof DataBufferInt) {
+                Arrays.fill(((DataBufferInt) db).getData(b), 0);
+            } else if (db instanceof DataBufferByte) {
+                Arrays.fill(((DataBufferByte) db).getData(b), (byte) 0);
+            } else if (db instanceof DataBufferUShort) {
+                Arrays.fill(((DataBufferUShort) db).getData(b), (short) 0);
+            } else {
+                for (int i = 0; i < db.getSize(); ++i) {
+                    db.setElem(b, i, 0);
+                }
+            }
+        }
+    }
+
+    /**
+     * @return the maximum size of the idle buffers in bytes
+     */
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    /**
+     * @return the size of the idle buffers in bytes
+     */
+    public long getIdleBytes() {
+        return idleBytes.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+}
@@ -0,0 +1,222 @@
+package digilib.image;
+
+/*
+ * #%L
+ * DerivativeScheduler -- creates prescaled images in the background.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.File;
+import java.util.Collections;
+import java.util.ListIterator;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.DocuDirectory;
+import digilib.io.ImageFile;
+import digilib.io.ImageFileSet;
+import digilib.io.ImageInput;
+import digilib.io.ImageSet;
+import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
+import digilib.util.ImageSize;
+
+/**
+ * Creates missing prescaled images (derivatives) in the scaled base
+ * directories when an image had to be loaded from the hi-res file.
+ * 
+ * A {@link DerivativeWorker} is run as PREFETCH job on the image
+ * DigilibJobCenter. The new files are added to the cached ImageFileSet so the
+ * next request for the image can use them.
+ * 
+ * @author casties
+ * 
+ */
+public class DerivativeScheduler {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DerivativeScheduler.class);
+
+    protected DigilibJobCenter<?> jobCenter;
+
+    /** scaled base directories */
+    protected File[] baseDirs;
+
+    /** sizes of the images in the scaled base directories */
+    protected int[] sizes;
+
+    protected int quality;
+
+    protected float minSubsample;
+
+    /** maximum number of waiting jobs */
+    protected int maxPending;
+
+    /** master files with waiting or running jobs */
+    protected Set<File> pending = Collections.newSetFromMap(new ConcurrentHashMap<File, Boolean>());
+
+    /** number of written files */
+    protected AtomicInteger created = new AtomicInteger(0);
+
+    /**
+     * Create a DerivativeScheduler.
+     * 
+     * @param jobCenter
+     *            the executor for the jobs
+     * @param baseDirs
+     *            the scaled base directories
+     * @param sizes
+     *            the sizes of the images in the scaled base directories
+     * @param quality
+     *            the scaling quality
+     * @param minSubsample
+     *            the minimum subsampling factor
+     * @param maxPending
+     *            the maximum number of waiting jobs
+     */
+    public DerivativeScheduler(DigilibJobCenter<?> jobCenter, File[] baseDirs, int[] sizes, int quality,
+            float minSubsample, int maxPending) {
+        this.jobCenter = jobCenter;
+        this.baseDirs = baseDirs;
+        this.sizes = sizes;
+        this.quality = quality;
+        this.minSubsample = minSubsample;
+        this.maxPending = maxPending;
+    }
+
+    /**
+     * Creates the missing derivatives of the ImageSet in the background if
+     * <code>input</code> is the hi-res file.
+     * 
+     * Returns if a job was submitted.
+     * 
+     * @param imageSet
+     * @param input
+     *            the ImageInput used for the request
+     * @return
+     */
+    public boolean schedule(ImageSet imageSet, ImageInput input) {
+        if (!(imageSet instanceof ImageFileSet) || input != imageSet.getBiggest()) {
+            return false;
+        }
+        final ImageFileSet imgSet = (ImageFileSet) imageSet;
+        final File master = imgSet.getFile();
+        if (pending.size() >= maxPending || pending.contains(master)) {
+            return false;
+        }
+        // digilib path of the image
+        String path = imgSet.getName();
+        if (imgSet.getParent() instanceof DocuDirectory) {
+            String dn = ((DocuDirectory) imgSet.getParent()).getDirName();
+            if (dn != null && dn.length() > 0) {
+                path = dn + "/" + path;
+            }
+        }
+        // the size is known from the request
+        ImageSize masterSize = input.getSize();
+        final File[] targets = new File[baseDirs.length];
+        boolean update = false;
+        for (int i = 0; i < baseDirs.length; ++i) {
+            targets[i] = DerivativeWorker.getDerivativeFile(baseDirs[i], path);
+            update |= DerivativeWorker.needsUpdate(master, masterSize, targets[i], sizes[i]);
+        }
+        if (!update || !pending.add(master)) {
+            return false;
+        }
+        logger.debug("DerivativeScheduler: creating prescaled images for " + path);
+        final DerivativeWorker worker = new DerivativeWorker(master, targets, sizes, quality, minSubsample);
+        try {
+            jobCenter.submit(new Runnable() {
+                public void run() {
+                    try {
+                        int n = worker.call();
+                        created.addAndGet(n);
+                        if (n > 0) {
+                            register(imgSet, targets, worker.getWrittenSizes());
+                        }
+                    } catch (Exception e) {
+                        logger.error("Unable to create prescaled images for " + master + ": " + e);
+                    } finally {
+                        pending.remove(master);
+                    }
+                }
+            }, JobClass.PREFETCH, 0);
+        } catch (RuntimeException e) {
+            pending.remove(master);
+            logger.error("Unable to submit prescaled image job: " + e);
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * Adds the new derivatives to the ImageFileSet.
+     * 
+     * @param imgSet
+     * @param targets
+     * @param sizes
+     */
+    protected void register(ImageFileSet imgSet, File[] targets, ImageSize[] sizes) {
+        for (int t = 0; t < targets.length; ++t) {
+            File target = targets[t];
+            if (sizes[t] == null) {
+                continue;
+            }
+            boolean known = false;
+            for (ListIterator<ImageInput> i = imgSet.getHiresIterator(); i.hasNext();) {
+                if (target.equals(i.next().getFile())) {
+                    known = true;
+                    break;
+                }
+            }
+            if (!known) {
+                ImageFile img = new ImageFile(target, imgSet, null);
+                img.setMimetype(DerivativeWorker.DERIVATIVE_MIMETYPE);
+                img.setSize(sizes[t]);
+                imgSet.insertBySize(img);
+            }
+        }
+    }
+
+    /**
+     * @return the number of waiting or running jobs
+     */
+    public int getPending() {
+        return pending.size();
+    }
+
+    /**
+     * @return the number of created files
+     */
+    public int getCreated() {
+        return created.get();
+    }
+
+    /**
+     * @return the sizes of the images in the scaled base directories
+     */
+    public int[] getSizes() {
+        return sizes;
+    }
+
+}
@@ -0,0 +1,322 @@
+package digilib.image;
+
+/*
+ * #%L
+ * DerivativeWorker -- creates scaled copies of an image file.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.Callable;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.FileOpException;
+import digilib.io.FileOps;
+import digilib.io.ImageFile;
+import digilib.util.ImageSize;
+
+/**
+ * Worker that creates scaled JPEG copies (derivatives) of an image file for
+ * the scaled directories of the basedir-list.
+ * 
+ * The derivative for a size fits in a square of that size. Derivatives that
+ * are newer than the master file or that would not be smaller than the master
+ * are skipped. The master is loaded only once (with subsampling like
+ * {@link ImageWorker}) and scaled down successively from the biggest to the
+ * smallest size.
+ * 
+ * Files are written to a temporary file first and then renamed so the
+ * servlet never sees partial files and an interrupted run can be restarted.
+ * 
+ * @author casties
+ * 
+ */
+public class DerivativeWorker implements Callable<Integer> {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(DerivativeWorker.class);
+
+    /** mime-type of the derivatives */
+    public static final String DERIVATIVE_MIMETYPE = "image/jpeg";
+
+    /** file extension of the derivatives */
+    public static final String DERIVATIVE_EXTENSION = ".jpg";
+
+    protected File master;
+
+    protected File[] targets;
+
+    protected int[] sizes;
+
+    protected int quality;
+
+    protected float minSubsample;
+
+    /** sizes of the written derivatives */
+    protected ImageSize[] writtenSizes;
+
+    /**
+     * Create a DerivativeWorker for the master file.
+     * 
+     * @param master
+     *            the master image file
+     * @param targets
+     *            the derivative files
+     * @param sizes
+     *            the maximum width and height of the derivatives
+     * @param quality
+     *            the scaling quality
+     * @param minSubsample
+     *            the minimum subsampling factor (subsample-minimum)
+     */
+    public DerivativeWorker(File master, File[] targets, int[] sizes, int quality, float minSubsample) {
+        this.master = master;
+        this.targets = targets;
+        this.sizes = sizes;
+        this.quality = quality;
+        this.minSubsample = minSubsample;
+    }
+
+    /**
+     * Returns the derivative file for the image file with the path
+     * <code>path</code> (relative to the base directory) in the scaled
+     * directory <code>baseDir</code>.
+     * 
+     * @param baseDir
+     * @param path
+     * @return
+     */
+    public static File getDerivativeFile(File baseDir, String path) {
+        File dir = new File(baseDir, FileOps.parent(path));
+        return new File(dir, FileOps.basename(FileOps.filename(path)) + DERIVATIVE_EXTENSION);
+    }
+
+    /**
+     * Returns the marker file recording that the master is not bigger than
+     * the derivative <code>target</code>.
+     * 
+     * @param target
+     * @return
+     */
+    public static File getSmallMarkerFile(File target) {
+        return new File(target.getParentFile(), "." + target.getName() + ".small");
+    }
+
+    /**
+     * Returns if the derivative <code>target</code> is missing or older than
+     * the master file.
+     * 
+     * Returns false if a marker newer than the master records that the
+     * master is not bigger than the derivative.
+     * 
+     * @param master
+     * @param target
+     * @return
+     */
+    public static boolean needsUpdate(File master, File target) {
+        long mm = master.lastModified();
+        long tm = target.lastModified();
+        if (tm != 0 && tm >= mm) {
+            return false;
+        }
+        long sm = getSmallMarkerFile(target).lastModified();
+        return (sm == 0 || sm < mm);
+    }
+
+    /**
+     * Returns if the derivative <code>target</code> with the size
+     * <code>size</code> is missing or older than the master file with the
+     * size <code>masterSize</code>.
+     * 
+     * Returns false if the master is not bigger than the derivative (there
+     * will be no derivative).
+     * 
+     * @param master
+     * @param masterSize
+     *            (may be null if unknown)
+     * @param target
+     * @param size
+     * @return
+     */
+    public static boolean needsUpdate(File master, ImageSize masterSize, File target, int size) {
+        if (masterSize != null && masterSize.getWidth() <= size && masterSize.getHeight() <= size) {
+            // master is small enough
+            return false;
+        }
+        return needsUpdate(master, target);
+    }
+
+    /**
+     * Creates the derivatives. Returns the number of written files.
+     * 
+     * @see java.util.concurrent.Callable#call()
+     */
+    public Integer call() throws IOException, ImageOpException {
+        long startTime = System.currentTimeMillis();
+        ImageFile input = new ImageFile(master, null, null);
+        DocuImage docuImage = DocuImageFactory.getInstance();
+        if (docuImage == null) {
+            throw new ImageOpException("Unable to get DocuImage instance!");
+        }
+        docuImage.setQuality(quality);
+        if (docuImage.identify(input) == null || input.getSize() == null) {
+            throw new FileOpException("Unable to identify image file " + master);
+        }
+        ImageSize imgSize = input.getSize();
+        // process sizes from big to small
+        Integer[] order = new Integer[sizes.length];
+        for (int i = 0; i < sizes.length; ++i) {
+            order[i] = i;
+        }
+        Arrays.sort(order, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return sizes[b] - sizes[a];
+            }
+        });
+        writtenSizes = new ImageSize[targets.length];
+        int written = 0;
+        boolean loaded = false;
+        try {
+            for (int i : order) {
+                File target = targets[i];
+                int size = sizes[i];
+                if (!needsUpdate(master, target)) {
+                    continue;
+                }
+                double scaleXY = Math.min((double) size / imgSize.getWidth(), (double) size / imgSize.getHeight());
+                if (scaleXY >= 1) {
+                    // master is small enough
+                    writeSmallMarker(target);
+                    continue;
+                }
+                if (!loaded) {
+                    if (docuImage.isSubimageSupported()) {
+                        double subf = 1 / scaleXY;
+                        double subsamp;
+                        if (quality > 0) {
+                            subsamp = Math.max(Math.floor(subf / minSubsample), 1d);
+                        } else {
+                            subsamp = Math.floor(subf);
+                        }
+                        Rectangle region = new Rectangle(0, 0, imgSize.getWidth(), imgSize.getHeight());
+                        docuImage.loadSubimage(input, region, (int) subsamp);
+                    } else {
+                        docuImage.loadImage(input);
+                    }
+                    loaded = true;
+                }
+                // scale the current image
+                double w = docuImage.getWidth();
+                double h = docuImage.getHeight();
+                double scale = Math.min(size / w, size / h);
+                docuImage.scale(scale, scale);
+                writeDerivative(docuImage, target);
+                writtenSizes[i] = new ImageSize(docuImage.getWidth(), docuImage.getHeight());
+                written += 1;
+            }
+        } finally {
+            docuImage.dispose();
+        }
+        if (written > 0) {
+            logger.debug("DerivativeWorker: " + written + " files for " + master + " in "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        }
+        return written;
+    }
+
+    /**
+     * Returns the sizes of the derivatives written by call() (null for
+     * derivatives that were not written).
+     * 
+     * @return
+     */
+    public ImageSize[] getWrittenSizes() {
+        return writtenSizes;
+    }
+
+    /**
+     * Writes the marker that the master is not bigger than the derivative
+     * <code>target</code>, so that the master is not processed again.
+     * 
+     * @param target
+     */
+    protected void writeSmallMarker(File target) {
+        File marker = getSmallMarkerFile(target);
+        File dir = marker.getParentFile();
+        try {
+            if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+                throw new FileOpException("Unable to create directory " + dir);
+            }
+            if (!marker.createNewFile()) {
+                marker.setLastModified(System.currentTimeMillis());
+            }
+        } catch (IOException e) {
+            logger.warn("Unable to write marker " + marker + ": " + e);
+        }
+    }
+
+    /**
+     * Writes the image to the file <code>target</code> using a temporary file.
+     * 
+     * @param docuImage
+     * @param target
+     * @throws IOException
+     * @throws ImageOpException
+     */
+    protected void writeDerivative(DocuImage docuImage, File target) throws IOException, ImageOpException {
+        File dir = target.getParentFile();
+        if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+            throw new FileOpException("Unable to create directory " + dir);
+        }
+        File temp = new File(dir, "." + target.getName() + ".part");
+        OutputStream out = null;
+        try {
+            out = new FileOutputStream(temp);
+            docuImage.writeImage(DERIVATIVE_MIMETYPE, out);
+            out.close();
+            out = null;
+            // renameTo does not replace on all platforms
+            target.delete();
+            if (!temp.renameTo(target)) {
+                throw new FileOpException("Unable to rename " + temp + " to " + target);
+            }
+            temp = null;
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+}
@@ -202,6 +202,29 @@ public interface DocuImage {
      */
     public void mirror(double angle) throws ImageOpException;
 
+    /**
+     * Scales, mirrors and rotates the current image in one step.
+     * 
+     * Has the same result as scale(scaleX, scaleY), mirror(0) if
+     * <code>hmir</code>, mirror(90) if <code>vmir</code> and rotate(angle) if
+     * <code>angle</code> is not 0 one after another but implementations may
+     * combine the operations into one transformation.
+     * 
+     * @param scaleX
+     *            the scaling factor in x-direction
+     * @param scaleY
+     *            the scaling factor in y-direction
+     * @param hmir
+     *            mirror horizontally
+     * @param vmir
+     *            mirror vertically
+     * @param angle
+     *            rotation angle in degree
+     * @throws ImageOpException
+     */
+    public void scaleMirrorRotate(double scaleX, double scaleY, boolean hmir, boolean vmir, double angle)
+            throws ImageOpException;
+
     /**
      * Enhances brightness and contrast of the current image.
      * 
@@ -262,6 +285,31 @@ public interface DocuImage {
      */
     public void colorOp(ColorOp op) throws ImageOpException;
 
+    /**
+     * Changes the colors of the current image in one step.
+     * 
+     * Has the same result as enhanceRGB(rgbm, rgba), enhance(mult, add) and
+     * colorOp(op) one after another but implementations may combine the
+     * operations into fewer passes over the image. enhanceRGB is skipped if
+     * <code>rgbm</code> or <code>rgba</code> is null, enhance if
+     * <code>mult</code>=1 and <code>add</code>=0 and colorOp if
+     * <code>op</code> is null.
+     * 
+     * @param rgbm
+     *            multiplicative constants for red, green, blue
+     * @param rgba
+     *            additive constant for red, green, blue
+     * @param mult
+     *            multiplicative constant for contrast enhancement
+     * @param add
+     *            additive constant for brightness enhancement
+     * @param op
+     *            color operation
+     * @throws ImageOpException
+     */
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp op)
+            throws ImageOpException;
+
     /**
      * Returns the interpolation quality.
      * 
@@ -277,6 +325,21 @@ public interface DocuImage {
      */
     public void setQuality(int quality);
 
+    /**
+     * Returns the parameters for encoding the image in writeImage().
+     * 
+     * @return
+     */
+    public EncodeParams getEncodeParams();
+
+    /**
+     * Sets the parameters for encoding the image in writeImage() (null means
+     * defaults).
+     * 
+     * @param params
+     */
+    public void setEncodeParams(EncodeParams params);
+
     /**
      * Frees all resources bound to the DocuImage.
      * 
@@ -285,6 +348,15 @@ public interface DocuImage {
      */
     public void dispose();
 
+    /**
+     * Aborts the current and all following operations as soon as possible.
+     * 
+     * Can be called from another thread. Aborted operations throw an
+     * exception.
+     * 
+     */
+    public void abort();
+
     /**
      * Check image size and type and store in ImageInput ii
      */
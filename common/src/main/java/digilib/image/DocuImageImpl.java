@@ -60,6 +60,9 @@ public abstract class DocuImageImpl implements DocuImage {
     /** Interpolation quality. */
     protected int quality = 0;
 
+    /** parameters for encoding the image (null means defaults) */
+    protected EncodeParams encodeParams = null;
+
     /** epsilon for float comparisons. */
     public static final double epsilon = 1e-5;
 
@@ -69,6 +72,9 @@ public abstract class DocuImageImpl implements DocuImage {
     /** ImageInput that was read */
     protected ImageInput input;
 
+    /** flag to abort operations (set from another thread) */
+    protected volatile boolean aborted = false;
+
     /** 
      * Returns the version.
      * @return the version
@@ -96,6 +102,24 @@ public abstract class DocuImageImpl implements DocuImage {
         this.quality = quality;
     }
 
+    /*
+     * (non-Javadoc)
+     * 
+     * @see digilib.image.DocuImage#getEncodeParams()
+     */
+    public EncodeParams getEncodeParams() {
+        return encodeParams;
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see digilib.image.DocuImage#setEncodeParams(digilib.image.EncodeParams)
+     */
+    public void setEncodeParams(EncodeParams params) {
+        this.encodeParams = params;
+    }
+
     /**
      * Crop and scale the current image.
      * 
@@ -159,6 +183,21 @@ public abstract class DocuImageImpl implements DocuImage {
         // just a do-nothing implementation
     }
 
+    public void scaleMirrorRotate(double scaleX, double scaleY, boolean hmir, boolean vmir, double angle)
+            throws ImageOpException {
+        // one after another
+        scale(scaleX, scaleY);
+        if (hmir) {
+            mirror(0);
+        }
+        if (vmir) {
+            mirror(90);
+        }
+        if (angle != 0) {
+            rotate(angle);
+        }
+    }
+
     public boolean isSubimageSupported() {
         // partial loading not supported per default
         return false;
@@ -176,10 +215,39 @@ public abstract class DocuImageImpl implements DocuImage {
         // emtpy implementation
     }
 
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp op)
+            throws ImageOpException {
+        // one after another
+        if (rgbm != null && rgba != null) {
+            enhanceRGB(rgbm, rgba);
+        }
+        if (mult != 1f || add != 0f) {
+            enhance(mult, add);
+        }
+        if (op != null) {
+            colorOp(op);
+        }
+    }
+
     public void dispose() {
         // emtpy implementation
     }
 
+    public void abort() {
+        aborted = true;
+    }
+
+    /**
+     * Throws an ImageOpException if the operations have been aborted.
+     * 
+     * @throws ImageOpException
+     */
+    protected void checkAborted() throws ImageOpException {
+        if (aborted) {
+            throw new ImageOpException("Image operation aborted.");
+        }
+    }
+
     public Iterator<String> getSupportedFormats() {
         List<String> empty = new LinkedList<String>();
         return empty.iterator();
@@ -0,0 +1,123 @@
+package digilib.image;
+
+/*
+ * #%L
+ * EncodeParams -- parameters for encoding images.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+/**
+ * Parameters for encoding images in DocuImage.writeImage().
+ * 
+ * @author casties
+ * 
+ */
+public class EncodeParams {
+
+    /** JPEG compression quality [0, 1] (0 means automatic) */
+    protected float jpegQuality = 0f;
+
+    /** write progressive JPEGs */
+    protected boolean jpegProgressive = false;
+
+    /** use chroma subsampling in JPEGs */
+    protected boolean jpegSubsampling = true;
+
+    /** PNG compression level [0, 9] (-1 means writer default) */
+    protected int pngCompression = -1;
+
+    /**
+     * Create EncodeParams with the default values.
+     */
+    public EncodeParams() {
+        super();
+    }
+
+    /**
+     * Create EncodeParams with the values of <code>params</code>.
+     * 
+     * @param params
+     */
+    public EncodeParams(EncodeParams params) {
+        this.jpegQuality = params.jpegQuality;
+        this.jpegProgressive = params.jpegProgressive;
+        this.jpegSubsampling = params.jpegSubsampling;
+        this.pngCompression = params.pngCompression;
+    }
+
+    /**
+     * @return the JPEG compression quality (0 means automatic)
+     */
+    public float getJpegQuality() {
+        return jpegQuality;
+    }
+
+    /**
+     * @param jpegQuality
+     *            the JPEG compression quality [0, 1] (0 means automatic)
+     */
+    public void setJpegQuality(float jpegQuality) {
+        this.jpegQuality = jpegQuality;
+    }
+
+    /**
+     * @return if progressive JPEGs are written
+     */
+    public boolean isJpegProgressive() {
+        return jpegProgressive;
+    }
+
+    /**
+     * @param jpegProgressive
+     */
+    public void setJpegProgressive(boolean jpegProgressive) {
+        this.jpegProgressive = jpegProgressive;
+    }
+
+    /**
+     * @return if chroma subsampling is used in JPEGs
+     */
+    public boolean isJpegSubsampling() {
+        return jpegSubsampling;
+    }
+
+    /**
+     * @param jpegSubsampling
+     */
+    public void setJpegSubsampling(boolean jpegSubsampling) {
+        this.jpegSubsampling = jpegSubsampling;
+    }
+
+    /**
+     * @return the PNG compression level (-1 means writer default)
+     */
+    public int getPngCompression() {
+        return pngCompression;
+    }
+
+    /**
+     * @param pngCompression
+     *            the PNG compression level [0, 9] (-1 means writer default)
+     */
+    public void setPngCompression(int pngCompression) {
+        this.pngCompression = pngCompression;
+    }
+
+}
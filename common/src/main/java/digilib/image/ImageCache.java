@@ -0,0 +1,231 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageCache -- in-memory cache for encoded images.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.log4j.Logger;
+
+/**
+ * In-memory cache for encoded (JPEG/PNG) images.
+ * 
+ * Entries are identified by the canonical key of an ImageJobDescription (see
+ * {@link ImageJobDescription#getCacheKey()}) and hold the modification time of
+ * the source directory. An entry with a different modification time is
+ * invalid and removed on access.
+ * 
+ * The total size of the cached data is limited. The least recently used
+ * entries are removed when the limit is exceeded. Images bigger than a fraction
+ * of the limit are not cached at all.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageCache {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageCache.class);
+
+    /** cached encoded image */
+    public static class Entry {
+        protected String mimeType;
+        protected byte[] data;
+        protected long mtime;
+
+        public Entry(String mimeType, byte[] data, long mtime) {
+            this.mimeType = mimeType;
+            this.data = data;
+            this.mtime = mtime;
+        }
+
+        /**
+         * @return the mime-type of the encoded image
+         */
+        public String getMimeType() {
+            return mimeType;
+        }
+
+        /**
+         * @return the encoded image
+         */
+        public byte[] getData() {
+            return data;
+        }
+
+        /**
+         * @return the modification time of the source
+         */
+        public long getMTime() {
+            return mtime;
+        }
+    }
+
+    /** map of entries in access order */
+    protected LinkedHashMap<String, Entry> map = new LinkedHashMap<String, Entry>(256, 0.75f, true);
+
+    /** total size of cached data (bytes) */
+    protected long size = 0;
+
+    /** maximum total size of cached data (bytes) */
+    protected long maxSize;
+
+    /** maximum size of a single entry (bytes) */
+    protected long maxEntrySize;
+
+    /** number of cache hits */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of cache misses */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /** number of evicted entries */
+    protected AtomicInteger evictions = new AtomicInteger(0);
+
+    /**
+     * Create an ImageCache with the given maximum size in bytes.
+     * 
+     * Images bigger than 1/8 of the maximum size are not cached.
+     * 
+     * @param maxSize
+     */
+    public ImageCache(long maxSize) {
+        this.maxSize = maxSize;
+        this.maxEntrySize = maxSize / 8;
+    }
+
+    /**
+     * Returns the cached image for the key.
+     * 
+     * Returns null if there is no entry or if the entry was created with a
+     * different source modification time <code>mtime</code>.
+     * 
+     * @param key
+     * @param mtime
+     * @return
+     */
+    public synchronized Entry get(String key, long mtime) {
+        Entry e = map.get(key);
+        if (e == null) {
+            misses.incrementAndGet();
+            return null;
+        }
+        if (e.mtime != mtime) {
+            // source has changed
+            logger.debug("ImageCache: stale entry for " + key);
+            map.remove(key);
+            size -= e.data.length;
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return e;
+    }
+
+    /**
+     * Adds an encoded image to the cache.
+     * 
+     * Removes the least recently used entries if the cache is full.
+     * 
+     * @param key
+     * @param mtime
+     * @param mimeType
+     * @param data
+     */
+    public synchronized void put(String key, long mtime, String mimeType, byte[] data) {
+        if (data.length > maxEntrySize) {
+            logger.debug("ImageCache: image too big to cache: " + data.length);
+            return;
+        }
+        Entry old = map.put(key, new Entry(mimeType, data, mtime));
+        if (old != null) {
+            size -= old.data.length;
+        }
+        size += data.length;
+        // remove least recently used entries
+        for (Iterator<Map.Entry<String, Entry>> i = map.entrySet().iterator(); size > maxSize && i.hasNext();) {
+            Entry e = i.next().getValue();
+            i.remove();
+            size -= e.data.length;
+            evictions.incrementAndGet();
+        }
+    }
+
+    /**
+     * Removes all entries.
+     */
+    public synchronized void clear() {
+        map.clear();
+        size = 0;
+    }
+
+    /**
+     * The number of images in the cache.
+     * 
+     * @return
+     */
+    public synchronized int size() {
+        return map.size();
+    }
+
+    /**
+     * The total size of the cached data in bytes.
+     * 
+     * @return
+     */
+    public synchronized long getSize() {
+        return size;
+    }
+
+    /**
+     * @return the maximum size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getEvictions() {
+        return evictions.get();
+    }
+
+}
@@ -0,0 +1,373 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageDiskCache -- persistent cache for encoded images.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.apache.log4j.Logger;
+
+import digilib.io.FileOps;
+
+/**
+ * Persistent cache for encoded (JPEG/PNG) images on disk.
+ * 
+ * Files are stored in a sharded directory layout under the cache directory.
+ * The file name is a hash of the key of the image (see
+ * {@link ImageJobDescription#getCacheKey()}) and the modification time of the
+ * source so changed sources are never served from the cache. Stale files are
+ * removed by the normal eviction.
+ * 
+ * Files are written to a temporary file first and then renamed so readers
+ * never see partial files. The modification time of a cache file is updated
+ * on access and used as last access time for eviction. When the total size
+ * exceeds the maximum size the least recently used files are removed by a
+ * background thread.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageDiskCache {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageDiskCache.class);
+
+    /** root directory of the cache */
+    protected File cacheDir;
+
+    /** directory for temporary files */
+    protected File tempDir;
+
+    /** maximum total size of the cache files (bytes) */
+    protected long maxSize;
+
+    /** current total size of the cache files (bytes) */
+    protected AtomicLong size = new AtomicLong(0);
+
+    /** minimum time between access time updates (ms) */
+    protected static long touchInterval = 60000;
+
+    /** background thread for size calculation and eviction */
+    protected ExecutorService cleaner = Executors.newSingleThreadExecutor();
+
+    /** flag for running cleanup */
+    protected AtomicBoolean cleaning = new AtomicBoolean(false);
+
+    /** number of cache hits */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of cache misses */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /** number of evicted files */
+    protected AtomicInteger evictions = new AtomicInteger(0);
+
+    /**
+     * Create an ImageDiskCache in the directory <code>dir</code> with the
+     * given maximum size in bytes.
+     * 
+     * The current size of existing files is calculated in the background.
+     * 
+     * @param dir
+     * @param maxSize
+     * @throws IOException
+     */
+    public ImageDiskCache(File dir, long maxSize) throws IOException {
+        this.cacheDir = dir;
+        this.maxSize = maxSize;
+        tempDir = new File(dir, "temp");
+        if (!tempDir.isDirectory() && !tempDir.mkdirs()) {
+            throw new IOException("Unable to create image disk cache directory " + tempDir);
+        }
+        // remove incomplete files
+        FileOps.emptyDirectory(tempDir);
+        // calculate current size
+        startCleanup();
+    }
+
+    /**
+     * Returns the cache file for the key or null if the image is not in the
+     * cache.
+     * 
+     * @param key
+     * @param mtime
+     *            modification time of the source
+     * @param mimeType
+     *            mime-type of the image
+     * @return
+     */
+    public File get(String key, long mtime, String mimeType) {
+        File f = getCacheFile(key, mtime, mimeType);
+        long lm = f.lastModified();
+        if (lm == 0) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        // update access time
+        long now = System.currentTimeMillis();
+        if (now - lm > touchInterval) {
+            f.setLastModified(now);
+        }
+        return f;
+    }
+
+    /**
+     * Adds an encoded image to the cache.
+     * 
+     * Starts a cleanup in the background if the cache is full.
+     * 
+     * @param key
+     * @param mtime
+     *            modification time of the source
+     * @param mimeType
+     *            mime-type of the image
+     * @param data
+     *            encoded image
+     */
+    public void put(String key, long mtime, String mimeType, byte[] data) {
+        File f = getCacheFile(key, mtime, mimeType);
+        File temp = null;
+        FileOutputStream out = null;
+        try {
+            // write to temporary file
+            temp = File.createTempFile("img", null, tempDir);
+            out = new FileOutputStream(temp);
+            out.write(data);
+            out.close();
+            out = null;
+            // move to final location
+            File dir = f.getParentFile();
+            if (!dir.isDirectory()) {
+                dir.mkdirs();
+            }
+            if (temp.renameTo(f)) {
+                temp = null;
+                if (size.addAndGet(data.length) > maxSize) {
+                    startCleanup();
+                }
+            }
+        } catch (IOException e) {
+            logger.error("Unable to write image to disk cache: " + e.getMessage());
+        } finally {
+            try {
+                if (out != null) {
+                    out.close();
+                }
+            } catch (IOException e) {
+                // nothing to do
+            }
+            if (temp != null) {
+                temp.delete();
+            }
+        }
+    }
+
+    /**
+     * Returns the File for the key in the cache directory.
+     * 
+     * @param key
+     * @param mtime
+     * @param mimeType
+     * @return
+     */
+    protected File getCacheFile(String key, long mtime, String mimeType) {
+        String hash = hashKey(key + "|" + mtime);
+        String ext = "image/png".equals(mimeType) ? ".png" : ".jpg";
+        File dir = new File(new File(cacheDir, hash.substring(0, 2)), hash.substring(2, 4));
+        return new File(dir, hash + ext);
+    }
+
+    /**
+     * Returns the hex-encoded MD5 hash of the String.
+     * 
+     * @param s
+     * @return
+     */
+    public static String hashKey(String s) {
+        try {
+            MessageDigest md = MessageDigest.getInstance("MD5");
+            byte[] dig = md.digest(s.getBytes("UTF-8"));
+            StringBuilder hex = new StringBuilder(dig.length * 2);
+            for (byte b : dig) {
+                hex.append(Character.forDigit((b >> 4) & 0xf, 16));
+                hex.append(Character.forDigit(b & 0xf, 16));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new RuntimeException("MD5 missing!", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new RuntimeException("UTF-8 missing!", e);
+        }
+    }
+
+    /**
+     * Start recalculation of the size and eviction of files in the
+     * background (unless it is already running).
+     */
+    protected void startCleanup() {
+        if (cleaning.compareAndSet(false, true)) {
+            cleaner.submit(new Runnable() {
+                public void run() {
+                    try {
+                        cleanup();
+                    } catch (Exception e) {
+                        logger.error("Error cleaning image disk cache:", e);
+                    } finally {
+                        cleaning.set(false);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Recalculates the size of the cache and removes the least recently used
+     * files until the size is below 90% of the maximum size.
+     */
+    protected void cleanup() {
+        long start = System.currentTimeMillis();
+        // collect all cache files
+        List<File> files = new ArrayList<File>();
+        long total = 0;
+        File[] shards = cacheDir.listFiles();
+        if (shards == null) {
+            return;
+        }
+        for (File s1 : shards) {
+            if (s1.equals(tempDir) || !s1.isDirectory()) {
+                continue;
+            }
+            File[] subShards = s1.listFiles();
+            if (subShards == null) {
+                continue;
+            }
+            for (File s2 : subShards) {
+                File[] fl = s2.listFiles();
+                if (fl == null) {
+                    continue;
+                }
+                for (File f : fl) {
+                    total += f.length();
+                    files.add(f);
+                }
+            }
+        }
+        size.set(total);
+        logger.debug("ImageDiskCache: " + files.size() + " files, " + total + " bytes");
+        if (total <= maxSize) {
+            return;
+        }
+        // sort by access time
+        final int nf = files.size();
+        final long[] atimes = new long[nf];
+        Integer[] idx = new Integer[nf];
+        for (int i = 0; i < nf; ++i) {
+            atimes[i] = files.get(i).lastModified();
+            idx[i] = i;
+        }
+        Arrays.sort(idx, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return (atimes[a] < atimes[b]) ? -1 : ((atimes[a] == atimes[b]) ? 0 : 1);
+            }
+        });
+        // remove oldest files
+        long target = maxSize / 10 * 9;
+        for (int i = 0; i < nf && size.get() > target; ++i) {
+            File f = files.get(idx[i]);
+            long fs = f.length();
+            if (f.delete()) {
+                size.addAndGet(-fs);
+                evictions.incrementAndGet();
+            }
+        }
+        logger.info("ImageDiskCache: cleaned up to " + size.get() + " bytes in "
+                + (System.currentTimeMillis() - start) + "ms");
+    }
+
+    /**
+     * Stops the background thread.
+     */
+    public void shutdown() {
+        cleaner.shutdownNow();
+    }
+
+    /**
+     * The total size of the cache files in bytes.
+     * 
+     * @return
+     */
+    public long getSize() {
+        return size.get();
+    }
+
+    /**
+     * @return the maximum size in bytes
+     */
+    public long getMaxSize() {
+        return maxSize;
+    }
+
+    /**
+     * @return the cache directory
+     */
+    public File getCacheDir() {
+        return cacheDir;
+    }
+
+    /**
+     * @return
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getEvictions() {
+        return evictions.get();
+    }
+
+}
@@ -30,8 +30,11 @@ package digilib.image;
 import java.io.IOException;
 import java.io.RandomAccessFile;
 
+import javax.imageio.stream.ImageInputStream;
+
 import org.devlib.schmidt.imageinfo.ImageInfo;
 
+import digilib.io.ImageFile;
 import digilib.io.ImageInput;
 import digilib.util.ImageSize;
 
@@ -46,11 +49,13 @@ public abstract class ImageInfoDocuImage extends DocuImageImpl {
     public ImageInput identify(ImageInput ii) throws IOException {
         logger.debug("identifying (ImageInfo) " + ii);
         RandomAccessFile raf = null;
+        ImageInputStream istream = null;
         try {
             // set up ImageInfo object
             ImageInfo iif = new ImageInfo();
             if (ii.hasImageInputStream()) {
-                iif.setInput(ii.getImageInputStream());
+                istream = ii.getImageInputStream();
+                iif.setInput(istream);
             } else if (ii.hasFile()) {
                 raf = new RandomAccessFile(ii.getFile(), "r");
                 iif.setInput(raf);
@@ -61,14 +66,15 @@ public abstract class ImageInfoDocuImage extends DocuImageImpl {
             iif.setDetermineImageNumber(false);
             // try with ImageInfo first
             if (iif.check()) {
-                ImageSize d = new ImageSize(iif.getWidth(), iif.getHeight());
-                ii.setSize(d);
                 String mt = iif.getMimeType();
                 // fix image/pjpeg
                 if (mt.equals("image/pjpeg")) {
                     mt = "image/jpeg";
                 }
                 ii.setMimetype(mt);
+                // set size last (other threads may check it)
+                ImageSize d = new ImageSize(iif.getWidth(), iif.getHeight());
+                ii.setSize(d);
                 logger.debug("image size: " + ii.getSize());
                 return ii;
             }
@@ -79,6 +85,10 @@ public abstract class ImageInfoDocuImage extends DocuImageImpl {
             if (raf != null) {
                 raf.close();
             }
+            if (istream != null && ii instanceof ImageFile) {
+                // new stream for every call
+                istream.close();
+            }
         }
         return null;
     }
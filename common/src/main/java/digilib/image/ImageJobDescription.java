@@ -28,6 +28,7 @@ package digilib.image;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
 import java.io.IOException;
+import java.util.TreeSet;
 
 import org.apache.log4j.Logger;
 
@@ -36,6 +37,7 @@ import digilib.conf.DigilibRequest;
 import digilib.image.DocuImage.ColorOp;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
+import digilib.io.DocuDirent;
 import digilib.io.FileOpException;
 import digilib.io.FileOps;
 import digilib.io.ImageInput;
@@ -61,6 +63,10 @@ public class ImageJobDescription extends ParameterMap {
     DigilibConfiguration dlConfig = null;
     protected static Logger logger = Logger.getLogger("digilib.servlet");
 
+    /** parameters that determine the resulting image (for getCacheKey) */
+    protected static final String[] imageParams = { "dw", "dh", "wx", "wy", "ww", "wh", "ws", "rot", "cont", "brgt",
+            "rgbm", "rgba", "colop", "scale", "ddpi", "ddpix", "ddpiy", "jq" };
+
     /* 
      * variables for caching values
      */
@@ -77,6 +83,7 @@ public class ImageJobDescription extends ParameterMap {
     String mimeType = null;
     Integer paramDW = null;
     Integer paramDH = null;
+    String cacheKey = null;
     DocuDirCache dirCache = null;
 
     /**
@@ -137,6 +144,8 @@ public class ImageJobDescription extends ParameterMap {
         newParameter("scale", new Float(1), null, 's');
         // color conversion operation
         newParameter("colop", "", null, 's');
+        // JPEG quality in percent (0 = default)
+        newParameter("jq", new Integer(0), null, 's');
     }
 
     /*
@@ -574,6 +583,25 @@ public class ImageJobDescription extends ParameterMap {
         return qual;
     }
 
+    /**
+     * Returns the parameters for encoding the output image from the
+     * configuration and the request.
+     * 
+     * @return
+     */
+    public EncodeParams getEncodeParams() {
+        EncodeParams params = new EncodeParams();
+        params.setJpegQuality(dlConfig.getAsFloat("img-jpeg-quality"));
+        int jq = getAsInt("jq");
+        if (jq > 0) {
+            params.setJpegQuality(Math.min(jq, 100) / 100f);
+        }
+        params.setJpegProgressive(dlConfig.getAsBoolean("img-jpeg-progressive") || hasOption("prog"));
+        params.setJpegSubsampling(dlConfig.getAsBoolean("img-jpeg-subsampling"));
+        params.setPngCompression(dlConfig.getAsInt("img-png-compression"));
+        return params;
+    }
+
     public ColorOp getColOp() {
         String op = getAsString("colop");
         if (op == null || op.length() == 0) {
@@ -705,6 +733,46 @@ public class ImageJobDescription extends ParameterMap {
         return !nt;
     }
 
+    /**
+     * Returns a canonical key for the image produced by this job.
+     * 
+     * Jobs with the same key produce the same image. The key contains the
+     * source file, all image parameters, the options, the quality and the
+     * output mime-type.
+     * 
+     * Should be called after isTransformRequired() because the destination
+     * size may be changed by getDw() and getDh().
+     * 
+     * @return
+     * @throws IOException
+     */
+    public String getCacheKey() throws IOException {
+        if (cacheKey == null) {
+            StringBuilder key = new StringBuilder();
+            // source image
+            ImageSet is = getImageSet();
+            if (is instanceof DocuDirent && ((DocuDirent) is).getFile() != null) {
+                key.append(((DocuDirent) is).getFile().getPath());
+            } else {
+                key.append(getFilePath());
+                key.append("|pn=").append(getAsInt("pn"));
+            }
+            // image parameters
+            for (String k : imageParams) {
+                key.append('|').append(k).append('=').append(getAsString(k));
+            }
+            // options in canonical order
+            key.append("|mo=");
+            for (String o : new TreeSet<String>(options)) {
+                key.append(o).append(',');
+            }
+            key.append("|q=").append(getScaleQual());
+            key.append("|mt=").append(getOutputMimeType());
+            cacheKey = key.toString();
+        }
+        return cacheKey;
+    }
+
     /**
      * @return the docuImage
      */
@@ -26,9 +26,11 @@ package digilib.image;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.awt.Graphics2D;
 import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
+import java.awt.Transparency;
 import java.awt.color.ColorSpace;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Rectangle2D;
@@ -38,17 +40,30 @@ import java.awt.image.BufferedImage;
 import java.awt.image.ByteLookupTable;
 import java.awt.image.ColorConvertOp;
 import java.awt.image.ColorModel;
+import java.awt.image.ComponentSampleModel;
 import java.awt.image.ConvolveOp;
+import java.awt.image.DataBufferByte;
 import java.awt.image.IndexColorModel;
 import java.awt.image.Kernel;
 import java.awt.image.LookupOp;
 import java.awt.image.LookupTable;
+import java.awt.image.Raster;
 import java.awt.image.RescaleOp;
+import java.awt.image.WritableRaster;
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.RandomAccessFile;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
@@ -57,13 +72,22 @@ import javax.imageio.ImageReader;
 import javax.imageio.ImageTypeSpecifier;
 import javax.imageio.ImageWriteParam;
 import javax.imageio.ImageWriter;
-import javax.imageio.stream.FileImageInputStream;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.metadata.IIOMetadata;
 import javax.imageio.stream.ImageInputStream;
 import javax.imageio.stream.ImageOutputStream;
+import javax.imageio.stream.MemoryCacheImageOutputStream;
+
+import org.w3c.dom.Element;
+import org.w3c.dom.Node;
+import org.w3c.dom.NodeList;
 
 import digilib.io.FileOpException;
 import digilib.io.FileOps;
+import digilib.io.ImageFile;
 import digilib.io.ImageInput;
+import digilib.io.ImageSet;
+import digilib.io.StreamImageOutputStream;
 import digilib.util.ImageSize;
 
 /**
@@ -83,9 +107,64 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     /** try to reuse reader object */
     public boolean reuseReader = false;
 
+    /** mime-type of the reader (null if the reader is not pooled) */
+    protected String readerMimeType = null;
+
+    /** input stream opened for the reader */
+    protected ImageInputStream readerStream = null;
+
+    /** pool of reusable ImageReaders */
+    protected static ImageReaderPool readerPool = new ImageReaderPool(16);
+
+    /** pool of reusable ImageWriters */
+    protected static ImageWriterPool writerPool = new ImageWriterPool(16);
+
+    /** pool of reusable image buffers (null if not used) */
+    protected static BufferedImagePool imagePool = null;
+
     /** interpolation type */
     protected RenderingHints renderHint = null;
 
+    /** height of the bands for transform operations (abort is checked between bands) */
+    protected static int transformBandHeight = 256;
+
+    /** executor for rendering bands in parallel (null if not parallel) */
+    protected static ExecutorService bandExecutor = null;
+
+    /** number of threads of the bandExecutor */
+    protected static int bandThreads = 0;
+
+    /** renders one band of the destination image */
+    protected static interface BandRenderer {
+        public void render(int y, int height) throws ImageOpException;
+    }
+
+    /** listener that aborts the reader from the reading thread */
+    protected IIOReadProgressListener abortListener = new IIOReadProgressListener() {
+        public void imageProgress(ImageReader source, float percentageDone) {
+            if (aborted) {
+                source.abort();
+            }
+        }
+        public void sequenceStarted(ImageReader source, int minIndex) {
+        }
+        public void sequenceComplete(ImageReader source) {
+        }
+        public void imageStarted(ImageReader source, int imageIndex) {
+        }
+        public void imageComplete(ImageReader source) {
+        }
+        public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {
+        }
+        public void thumbnailProgress(ImageReader source, float percentageDone) {
+        }
+        public void thumbnailComplete(ImageReader source) {
+        }
+        public void readAborted(ImageReader source) {
+            logger.debug("reading aborted.");
+        }
+    };
+
     /** convolution kernels for blur() */
     protected static Kernel[] convolutionKernels = { 
             null, new Kernel(1, 1, new float[] { 1f }),
@@ -202,9 +281,15 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             try {
                 if (img == null) {
                     reader = getReader(input);
-                    // get size from ImageReader
-                    h = reader.getHeight(0);
-                    w = reader.getWidth(0);
+                    try {
+                        // get size from ImageReader
+                        h = reader.getHeight(input.getImageIndex());
+                        w = reader.getWidth(input.getImageIndex());
+                    } finally {
+                        if (!reuseReader) {
+                            releaseReader();
+                        }
+                    }
                 } else {
                     // get size from image
                     h = img.getHeight();
@@ -231,6 +316,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // try parent method first
             ii = super.identify(input);
             if (ii != null) {
+                identifyLevels(ii);
                 return ii;
             }
         }
@@ -240,11 +326,10 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
              * try ImageReader
              */
             reader = getReader(input);
-            // set size
-            ImageSize d = new ImageSize(reader.getWidth(0), reader.getHeight(0));
-            input.setSize(d);
+            int idx = input.getImageIndex();
+            ImageSize d = new ImageSize(reader.getWidth(idx), reader.getHeight(idx));
             // set mime type
-            if (input.getMimetype() == null) {
+            if (!input.hasMimetype()) {
                 if (input.hasFile()) {
                     String t = FileOps.mimeForFile(input.getFile());
                     input.setMimetype(t);
@@ -254,14 +339,81 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                     input.setMimetype(t);
                 }
             }
+            // set size last (other threads may check it)
+            input.setSize(d);
+            identifyLevels(input);
             return input;
         } catch (FileOpException e) {
             // maybe just our class doesn't know what to do
             logger.error("ImageLoaderDocuimage unable to identify:", e);
             return null;
         } finally {
-            if (!reuseReader && reader != null) {
-                reader.dispose();
+            if (!reuseReader) {
+                releaseReader();
+            }
+        }
+    }
+
+    /**
+     * Adds the additional resolution levels of a pyramidal TIFF file to the
+     * ImageSet of the input.
+     * 
+     * The images after the first image in the file are used as long as they
+     * get smaller and keep the aspect ratio.
+     * 
+     * @param input
+     */
+    protected void identifyLevels(ImageInput input) {
+        ImageSet imgSet = input.getParent();
+        if (!(input instanceof ImageFile) || input.getImageIndex() != 0 || imgSet == null
+                || !"image/tiff".equals(input.getMimetype())) {
+            return;
+        }
+        synchronized (imgSet) {
+            // levels already added?
+            for (ListIterator<ImageInput> i = imgSet.getHiresIterator(); i.hasNext();) {
+                ImageInput ii = i.next();
+                if (ii.getImageIndex() > 0 && input.getFile().equals(ii.getFile())) {
+                    return;
+                }
+            }
+            boolean ownReader = (reader == null);
+            try {
+                if (ownReader) {
+                    reader = getReader(input);
+                }
+                int numImages = reader.getNumImages(true);
+                if (numImages < 2) {
+                    return;
+                }
+                List<ImageInput> levels = new ArrayList<ImageInput>(numImages - 1);
+                int w = reader.getWidth(0);
+                int h = reader.getHeight(0);
+                float aspect = (float) w / (float) h;
+                for (int i = 1; i < numImages; ++i) {
+                    int lw = reader.getWidth(i);
+                    int lh = reader.getHeight(i);
+                    if (lw >= w || lh >= h || Math.abs((float) lw / (float) lh - aspect) > aspect * 0.05f) {
+                        // not a resolution level
+                        break;
+                    }
+                    ImageFile level = new ImageFile((ImageFile) input, i);
+                    level.setMimetype(input.getMimetype());
+                    level.setSize(new ImageSize(lw, lh));
+                    levels.add(level);
+                    w = lw;
+                    h = lh;
+                }
+                if (!levels.isEmpty()) {
+                    logger.debug("identifyLevels: adding " + levels.size() + " levels of " + input);
+                    imgSet.insertAfter(input, levels);
+                }
+            } catch (IOException e) {
+                logger.warn("ImageLoaderDocuImage unable to identify levels: " + e.getMessage());
+            } finally {
+                if (ownReader && !reuseReader) {
+                    releaseReader();
+                }
             }
         }
     }
@@ -272,9 +424,17 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         this.input = ii;
         try {
             if (ii.hasImageInputStream()) {
-                img = ImageIO.read(ii.getImageInputStream());
+                ImageInputStream istream = ii.getImageInputStream();
+                try {
+                    setImage(ImageIO.read(istream));
+                } finally {
+                    if (ii instanceof ImageFile) {
+                        // new stream for every call
+                        istream.close();
+                    }
+                }
             } else if (ii.hasFile()) {
-                img = ImageIO.read(ii.getFile());
+                setImage(ImageIO.read(ii.getFile()));
             }
         } catch (IOException e) {
             throw new FileOpException("Error reading image!", e);
@@ -287,6 +447,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     /**
      * Get an ImageReader for the image file.
      * 
+     * Readers for known mime-types are taken from the reader pool and should
+     * be returned with releaseReader().
+     * 
      * @return
      */
     public ImageReader getReader(ImageInput input) throws IOException {
@@ -299,10 +462,14 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         if (input.hasImageInputStream()) {
             // ImageInputStream input
             istream = input.getImageInputStream();
+            if (input instanceof ImageFile) {
+                // new stream for every call: close it with the reader
+                readerStream = istream;
+            }
         } else if (input.hasFile()) {
             // file only input
-            RandomAccessFile rf = new RandomAccessFile(input.getFile(), "r");
-            istream = new FileImageInputStream(rf);
+            istream = ImageFile.openImageInputStream(input.getFile());
+            readerStream = istream;
         } else {
             throw new FileOpException("Unable to get data from ImageInput");
         }
@@ -315,17 +482,22 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // try file extension
             mt = FileOps.mimeForFile(input.getFile());
         }
+        ImageReader reader = null;
         if (mt == null) {
             logger.debug("No mime-type. Trying automagic.");
             readers = ImageIO.getImageReaders(istream);
+            if (readers.hasNext()) {
+                reader = readers.next();
+            }
         } else {
             logger.debug("File type:" + mt);
-            readers = ImageIO.getImageReadersByMIMEType(mt);
+            reader = readerPool.getReader(mt);
+            readerMimeType = mt;
         }
-        if (!readers.hasNext()) {
+        if (reader == null) {
+            closeReaderStream();
             throw new FileOpException("Can't find Reader to load File!");
         }
-        ImageReader reader = readers.next();
         logger.debug("ImageIO: this reader: " + reader.getClass());
         /*
          * while (readers.hasNext()) { logger.debug("ImageIO: next reader: " +
@@ -346,10 +518,15 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             ImageReadParam readParam = reader.getDefaultReadParam();
             readParam.setSourceRegion(region);
             if (prescale > 1) {
+                /*
+                 * the JPEG reader decodes every block and drops the rows and
+                 * columns in native code (no DCT scaling in ImageIO) so the
+                 * decoding time hardly depends on prescale.
+                 */
                 readParam.setSourceSubsampling(prescale, prescale, 0, 0);
             }
             // try to set target color space to sRGB
-            for (Iterator<ImageTypeSpecifier> i = reader.getImageTypes(0); i.hasNext();) {
+            for (Iterator<ImageTypeSpecifier> i = reader.getImageTypes(ii.getImageIndex()); i.hasNext();) {
                 ImageTypeSpecifier type = (ImageTypeSpecifier) i.next();
                 ColorModel cm = type.getColorModel();
                 ColorSpace cs = cm.getColorSpace();
@@ -367,7 +544,21 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             // read image
             logger.debug("loadSubimage: loading..");
-            img = reader.read(0, readParam);
+            if (aborted) {
+                throw new FileOpException("Loading image aborted.");
+            }
+            // abortListener aborts the reader in this thread
+            reader.addIIOReadProgressListener(abortListener);
+            try {
+                setImage(reader.read(ii.getImageIndex(), readParam));
+            } finally {
+                reader.removeIIOReadProgressListener(abortListener);
+            }
+            if (aborted) {
+                // image is incomplete
+                setImage(null);
+                throw new FileOpException("Loading image aborted.");
+            }
             logger.debug("loadSubimage: loaded");
             // invalidate image size if it was set
             imageSize = null;
@@ -378,28 +569,123 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                 if (img.getColorModel().hasAlpha()) {
                     type = BufferedImage.TYPE_INT_ARGB;
                 }
-                BufferedImage lcImg = new BufferedImage(img.getWidth(), img.getHeight(), type);
+                BufferedImage lcImg = newImage(img.getWidth(), img.getHeight(), type);
                 lcImg.createGraphics().drawImage(img, null, 0, 0);
-                img = lcImg;
+                setImage(lcImg);
             }
         } catch (IOException e) {
             throw new FileOpException("Unable to load File!", e);
         } finally {
-            if (!reuseReader && reader != null) {
+            if (!reuseReader) {
+                releaseReader();
+            }
+        }
+    }
+
+    /**
+     * Returns the current ImageReader to the reader pool (or disposes it) and
+     * closes its input stream.
+     */
+    protected void releaseReader() {
+        if (reader != null) {
+            if (readerMimeType != null) {
+                readerPool.releaseReader(readerMimeType, reader);
+            } else {
                 reader.dispose();
             }
+            reader = null;
+        }
+        readerMimeType = null;
+        closeReaderStream();
+    }
+
+    /**
+     * Returns a new image of the size and type (from the image pool if used).
+     * 
+     * @param width
+     * @param height
+     * @param type
+     *            BufferedImage type
+     * @return
+     */
+    protected static BufferedImage newImage(int width, int height, int type) {
+        BufferedImagePool pool = imagePool;
+        if (pool != null) {
+            return pool.getImage(width, height, type);
+        }
+        return new BufferedImage(width, height, type);
+    }
+
+    /**
+     * Replaces the current image. Returns the buffer of the old image to the
+     * image pool if it is not used by the new image.
+     * 
+     * @param newImg
+     */
+    protected void setImage(BufferedImage newImg) {
+        BufferedImage oldImg = img;
+        img = newImg;
+        BufferedImagePool pool = imagePool;
+        if (pool != null && oldImg != null && oldImg != newImg) {
+            if (newImg == null || oldImg.getRaster().getDataBuffer() != newImg.getRaster().getDataBuffer()) {
+                pool.releaseImage(oldImg);
+            }
+        }
+    }
+
+    /**
+     * Sets the pool of reusable image buffers for all instances (null means
+     * no pool).
+     * 
+     * @param pool
+     */
+    public static void setImagePool(BufferedImagePool pool) {
+        imagePool = pool;
+    }
+
+    /**
+     * @return the pool of reusable image buffers (may be null)
+     */
+    public static BufferedImagePool getImagePool() {
+        return imagePool;
+    }
+
+    /**
+     * Closes the input stream opened for the ImageReader.
+     */
+    protected void closeReaderStream() {
+        if (readerStream != null) {
+            try {
+                readerStream.close();
+            } catch (IOException e) {
+                // nothing to do
+            }
+            readerStream = null;
         }
     }
 
     /* write image of type mt to Stream */
     public void writeImage(String mt, OutputStream ostream) throws ImageOpException, FileOpException {
         logger.debug("writeImage");
-        // setup output
-        ImageWriter writer = null;
+        EncodeParams params = (encodeParams != null) ? encodeParams : new EncodeParams();
+        String format;
+        if ("image/jpeg".equals(mt)) {
+            format = "jpeg";
+        } else if ("image/png".equals(mt)) {
+            format = "png";
+        } else {
+            // unknown mime type
+            throw new ImageOpException("Unknown mime type: " + mt);
+        }
+        ImageWriter writer = writerPool.getWriter(format);
+        if (writer == null) {
+            throw new ImageOpException("Unable to get " + format + " writer");
+        }
         ImageOutputStream imgout = null;
         try {
-            imgout = ImageIO.createImageOutputStream(ostream);
-            if (mt == "image/jpeg") {
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            IIOMetadata meta = null;
+            if ("jpeg".equals(format)) {
                 /*
                  * JPEG doesn't do transparency so we have to convert any RGBA
                  * image to RGB or we the client will think its CMYK :-( *Java2D
@@ -407,62 +693,316 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                  */
                 if (img.getColorModel().hasAlpha()) {
                     logger.debug("BARF: JPEG with transparency!!");
-                    BufferedImage rgbImg = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
+                    BufferedImage rgbImg = newImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_INT_RGB);
                     rgbImg.createGraphics().drawImage(img, null, 0, 0);
-                    img = rgbImg;
+                    setImage(rgbImg);
                 }
-                writer = ImageIO.getImageWritersByFormatName("jpeg").next();
-                if (writer == null) {
-                    throw new ImageOpException("Unable to get JPEG writer");
+                float jq = params.getJpegQuality();
+                if (jq <= 0 && quality > 1) {
+                    jq = 0.9f;
                 }
-                ImageWriteParam param = writer.getDefaultWriteParam();
-                if (quality > 1) {
+                if (jq > 0) {
                     // change JPEG compression quality
                     param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
-                    param.setCompressionQuality(0.9f);
+                    param.setCompressionQuality(Math.min(jq, 1f));
+                }
+                if (params.isJpegProgressive()) {
+                    param.setProgressiveMode(ImageWriteParam.MODE_DEFAULT);
                 }
-                writer.setOutput(imgout);
-                // render output
-                logger.debug("writing JPEG");
-                writer.write(null, new IIOImage(img, null, null), param);
-            } else if (mt == "image/png") {
-                // render output
-                writer = ImageIO.getImageWritersByFormatName("png").next();
-                if (writer == null) {
-                    throw new ImageOpException("Unable to get PNG writer");
+                if (!params.isJpegSubsampling()) {
+                    meta = getJpegMetadataWithoutSubsampling(writer, param);
                 }
-                writer.setOutput(imgout);
-                logger.debug("writing PNG");
-                writer.write(img);
+                // the JPEG writer writes sequentially: no cache needed
+                imgout = new StreamImageOutputStream(ostream);
             } else {
-                // unknown mime type
-                throw new ImageOpException("Unknown mime type: " + mt);
+                int pc = params.getPngCompression();
+                if (pc >= 0 && param.canWriteCompressed()) {
+                    // compression quality 0 is deflater level 9
+                    param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+                    param.setCompressionQuality((9 - Math.min(pc, 9)) / 9f);
+                }
+                // the PNG writer seeks back: cache in memory
+                imgout = new MemoryCacheImageOutputStream(ostream);
             }
-
+            writer.setOutput(imgout);
+            // render output
+            logger.debug("writing " + format);
+            writer.write(null, new IIOImage(img, null, meta), param);
+            // flushes the cache but does not close ostream
+            imgout.close();
+            imgout = null;
         } catch (IOException e) {
             logger.error("Error writing image:", e);
             throw new FileOpException("Error writing image!", e);
+        } finally {
+            if (imgout != null) {
+                try {
+                    imgout.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+            writerPool.releaseWriter(format, writer);
         }
-        // TODO: should we: finally { writer.dispose(); }
+    }
+
+    /**
+     * Returns JPEG image metadata for the current image with the sampling
+     * factors of all components set to 1 (no chroma subsampling). Returns
+     * null if the metadata can not be changed.
+     * 
+     * @param writer
+     * @param param
+     * @return
+     */
+    protected IIOMetadata getJpegMetadataWithoutSubsampling(ImageWriter writer, ImageWriteParam param) {
+        if (img.getColorModel().getNumComponents() < 3) {
+            // no chroma
+            return null;
+        }
+        String fmt = "javax_imageio_jpeg_image_1.0";
+        try {
+            IIOMetadata meta = writer.getDefaultImageMetadata(new ImageTypeSpecifier(img), param);
+            Node tree = meta.getAsTree(fmt);
+            NodeList specs = ((Element) tree).getElementsByTagName("componentSpec");
+            for (int i = 0; i < specs.getLength(); ++i) {
+                Element spec = (Element) specs.item(i);
+                spec.setAttribute("HsamplingFactor", "1");
+                spec.setAttribute("VsamplingFactor", "1");
+            }
+            meta.setFromTree(fmt, tree);
+            return meta;
+        } catch (Exception e) {
+            logger.warn("Unable to switch off JPEG subsampling: " + e);
+        }
+        return null;
     }
 
     public void scale(double scaleX, double scaleY) throws ImageOpException {
         logger.debug("scale: " + scaleX);
-        /* for downscaling in high quality the image is blurred first */
+        checkAborted();
+        /* for downscaling in high quality the image is averaged or blurred first */
+        if ((scaleX <= 0.5) && (scaleY <= 1) && (quality > 1) && isAreaAverageSupported(img)) {
+            setImage(areaAverage(img, scaleX, scaleY));
+            logger.debug("scaled to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
+            imageSize = null;
+            return;
+        }
         if ((scaleX <= 0.5) && (quality > 1)) {
             int bl = (int) Math.floor(1 / scaleX);
             blur(bl);
+            checkAborted();
         }
         /* then scaled */
-        AffineTransformOp scaleOp = new AffineTransformOp(AffineTransform.getScaleInstance(scaleX, scaleY), renderHint);
-        img = scaleOp.filter(img, null);
+        setImage(transformInBands(AffineTransform.getScaleInstance(scaleX, scaleY)));
         logger.debug("scaled to " + img.getWidth() + "x" + img.getHeight() + " img=" + img);
         // invalidate image size
         imageSize = null;
     }
 
+    /**
+     * Returns if the image can be scaled by areaAverage().
+     * 
+     * Supports images with 8 bit per sample interleaved in one byte array
+     * (like TYPE_3BYTE_BGR and TYPE_BYTE_GRAY) without alpha.
+     * 
+     * @param bi
+     * @return
+     */
+    protected static boolean isAreaAverageSupported(BufferedImage bi) {
+        ColorModel cm = bi.getColorModel();
+        if (cm instanceof IndexColorModel || cm.hasAlpha()) {
+            return false;
+        }
+        Raster r = bi.getRaster();
+        if (!(r.getDataBuffer() instanceof DataBufferByte) || !(r.getSampleModel() instanceof ComponentSampleModel)) {
+            return false;
+        }
+        ComponentSampleModel sm = (ComponentSampleModel) r.getSampleModel();
+        if (sm.getNumBands() != cm.getNumComponents() || r.getDataBuffer().getNumBanks() != 1) {
+            return false;
+        }
+        for (int s : sm.getSampleSize()) {
+            if (s != 8) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Scales the image down by averaging the source pixels covered by each
+     * destination pixel.
+     * 
+     * The image is reduced in one pass over the source rows working on the
+     * byte arrays of the rasters. Cost grows with the number of source pixels
+     * and not with the scale factor like blur(). Both scale factors must be
+     * &lt;= 1 and the image must be supported by isAreaAverageSupported().
+     * 
+     * @param src
+     * @param scaleX
+     * @param scaleY
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage areaAverage(BufferedImage src, double scaleX, double scaleY) throws ImageOpException {
+        int sw = src.getWidth();
+        int sh = src.getHeight();
+        // same size as AffineTransformOp
+        int dw = Math.max((int) Math.ceil(sw * scaleX), 1);
+        int dh = Math.max((int) Math.ceil(sh * scaleY), 1);
+        BufferedImage dest = null;
+        if (src.getType() == BufferedImage.TYPE_CUSTOM) {
+            ColorModel cm = src.getColorModel();
+            dest = new BufferedImage(cm, cm.createCompatibleWritableRaster(dw, dh), false, null);
+        } else {
+            dest = newImage(dw, dh, src.getType());
+        }
+        // source data
+        Raster sr = src.getRaster();
+        ComponentSampleModel ssm = (ComponentSampleModel) sr.getSampleModel();
+        DataBufferByte sdb = (DataBufferByte) sr.getDataBuffer();
+        byte[] sdata = sdb.getData();
+        int nb = ssm.getNumBands();
+        int sps = ssm.getPixelStride();
+        int sss = ssm.getScanlineStride();
+        int[] sbo = ssm.getBandOffsets();
+        int sbase = sdb.getOffset() - sr.getSampleModelTranslateY() * sss - sr.getSampleModelTranslateX() * sps;
+        // destination data
+        WritableRaster dr = dest.getRaster();
+        ComponentSampleModel dsm = (ComponentSampleModel) dr.getSampleModel();
+        DataBufferByte ddb = (DataBufferByte) dr.getDataBuffer();
+        byte[] ddata = ddb.getData();
+        int dps = dsm.getPixelStride();
+        int dss = dsm.getScanlineStride();
+        int[] dbo = dsm.getBandOffsets();
+        int dbase = ddb.getOffset();
+        /*
+         * each source pixel i contributes to destination pixel idx[i] with
+         * weight w0[i] and to destination pixel idx[i]+1 with weight w1[i]
+         */
+        int[] xIdx = new int[sw];
+        float[] xW0 = new float[sw];
+        float[] xW1 = new float[sw];
+        areaWeights(sw, dw, scaleX, xIdx, xW0, xW1);
+        int[] yIdx = new int[sh];
+        float[] yW0 = new float[sh];
+        float[] yW1 = new float[sh];
+        areaWeights(sh, dh, scaleY, yIdx, yW0, yW1);
+        // sums of the horizontally reduced rows for two destination rows
+        float[] row = new float[(dw + 1) * nb];
+        float[] acc0 = new float[(dw + 1) * nb];
+        float[] acc1 = new float[(dw + 1) * nb];
+        int accRow = 0;
+        for (int sy = 0; sy < sh; ++sy) {
+            if (sy % transformBandHeight == 0) {
+                checkAborted();
+            }
+            // reduce source row
+            Arrays.fill(row, 0f);
+            int sp = sbase + sy * sss;
+            for (int sx = 0; sx < sw; ++sx) {
+                int dp = xIdx[sx] * nb;
+                float wa = xW0[sx];
+                float wb = xW1[sx];
+                for (int b = 0; b < nb; ++b) {
+                    float v = sdata[sp + sbo[b]] & 0xff;
+                    row[dp + b] += v * wa;
+                    row[dp + nb + b] += v * wb;
+                }
+                sp += sps;
+            }
+            // write finished destination rows
+            int dy = yIdx[sy];
+            while (accRow < dy) {
+                writeAreaRow(acc0, ddata, dbase + accRow * dss, dw, nb, dps, dbo);
+                float[] t = acc0;
+                acc0 = acc1;
+                acc1 = t;
+                Arrays.fill(acc1, 0f);
+                ++accRow;
+            }
+            // add source row
+            float wa = yW0[sy];
+            float wb = yW1[sy];
+            for (int i = 0; i < dw * nb; ++i) {
+                acc0[i] += row[i] * wa;
+                acc1[i] += row[i] * wb;
+            }
+        }
+        // write the last destination rows (the last source row may reach into the next row)
+        writeAreaRow(acc0, ddata, dbase + accRow * dss, dw, nb, dps, dbo);
+        if (accRow + 1 < dh) {
+            writeAreaRow(acc1, ddata, dbase + (accRow + 1) * dss, dw, nb, dps, dbo);
+        }
+        return dest;
+    }
+
+    /**
+     * Calculates the weights of the source pixels for areaAverage() along one
+     * axis. The weights of each destination pixel add up to 1.
+     * 
+     * @param sl
+     *            number of source pixels
+     * @param dl
+     *            number of destination pixels
+     * @param scale
+     * @param idx
+     *            destination pixel of each source pixel
+     * @param w0
+     *            weight for the destination pixel idx
+     * @param w1
+     *            weight for the destination pixel idx+1
+     */
+    protected static void areaWeights(int sl, int dl, double scale, int[] idx, float[] w0, float[] w1) {
+        double[] total = new double[dl + 1];
+        for (int i = 0; i < sl; ++i) {
+            // source pixel covers [i*scale, (i+1)*scale) in destination
+            double start = i * scale;
+            double end = (i + 1) * scale;
+            int d = Math.min((int) Math.floor(start), dl - 1);
+            double split = Math.min(d + 1, end);
+            idx[i] = d;
+            w0[i] = (float) (split - start);
+            w1[i] = (d + 1 < dl) ? (float) (end - split) : 0f;
+            total[d] += w0[i];
+            total[d + 1] += w1[i];
+        }
+        for (int i = 0; i < sl; ++i) {
+            int d = idx[i];
+            w0[i] /= total[d];
+            if (w1[i] > 0) {
+                w1[i] /= total[d + 1];
+            }
+        }
+    }
+
+    /**
+     * Writes a row of averaged samples.
+     * 
+     * @param acc
+     * @param data
+     * @param offset
+     * @param w
+     * @param nb
+     * @param pixelStride
+     * @param bandOffsets
+     */
+    protected static void writeAreaRow(float[] acc, byte[] data, int offset, int w, int nb, int pixelStride,
+            int[] bandOffsets) {
+        int i = 0;
+        for (int x = 0; x < w; ++x) {
+            for (int b = 0; b < nb; ++b) {
+                int v = (int) (acc[i++] + 0.5f);
+                data[offset + bandOffsets[b]] = (byte) ((v > 255) ? 255 : v);
+            }
+            offset += pixelStride;
+        }
+    }
+
     public void blur(int radius) throws ImageOpException {
         logger.debug("blur: " + radius);
+        checkAborted();
         // minimum radius is 2
         int klen = Math.max(radius, 2);
         Kernel blur = null;
@@ -481,17 +1021,261 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             blur = new Kernel(klen, klen, kern);
         }
         // blur with convolve operation
-        ConvolveOp blurOp = new ConvolveOp(blur, ConvolveOp.EDGE_NO_OP, renderHint);
+        final ConvolveOp blurOp = new ConvolveOp(blur, ConvolveOp.EDGE_NO_OP, renderHint);
+        final int w = img.getWidth();
+        final int h = img.getHeight();
         BufferedImage dest = null;
         // blur needs explicit destination image type for 3BYTE_BGR *Java2D BUG*
-        if (img.getType() == BufferedImage.TYPE_3BYTE_BGR) {
+        final boolean fixDest = (img.getType() == BufferedImage.TYPE_3BYTE_BGR);
+        if (fixDest) {
             logger.debug("blur: fixing destination image type");
-            dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+            dest = newImage(w, h, BufferedImage.TYPE_3BYTE_BGR);
+        }
+        if (bandExecutor == null || h <= transformBandHeight) {
+            setImage(blurOp.filter(img, dest));
+        } else {
+            /*
+             * convolve bands with the rows above and below that the kernel
+             * needs and copy the inner rows to the destination
+             */
+            final BufferedImage src = img;
+            final BufferedImage dst = (dest != null) ? dest : blurOp.createCompatibleDestImage(src, null);
+            // the native implementation does not always use the kernel origin
+            final int margin = blur.getHeight();
+            renderBands(h, new BandRenderer() {
+                public void render(int y, int bh) throws ImageOpException {
+                    int sy = Math.max(y - margin, 0);
+                    int sh = Math.min(y + bh + margin, h) - sy;
+                    BufferedImage srcBand = src.getSubimage(0, sy, w, sh);
+                    BufferedImage band = fixDest ? new BufferedImage(w, sh, BufferedImage.TYPE_3BYTE_BGR) : null;
+                    band = blurOp.filter(srcBand, band);
+                    dst.getRaster().setRect(0, y, band.getRaster().createChild(0, y - sy, w, bh, 0, 0, null));
+                }
+            });
+            setImage(dst);
         }
-        img = blurOp.filter(img, dest);
         logger.debug("blurred: " + img);
     }
 
+    /**
+     * Transforms the image with the AffineTransform.
+     * 
+     * The destination image is rendered in horizontal bands so the operation
+     * can be aborted between bands.
+     * 
+     * @param trafo
+     * @return the transformed image
+     * @throws ImageOpException
+     */
+    protected BufferedImage transformInBands(AffineTransform trafo) throws ImageOpException {
+        return transformInBands(trafo, null);
+    }
+
+    /**
+     * Transforms the image with the AffineTransform into the image
+     * <code>dest</code>.
+     * 
+     * Creates a compatible destination image if <code>dest</code> is null.
+     * 
+     * @param trafo
+     * @param dest
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage transformInBands(final AffineTransform trafo, BufferedImage destImg)
+            throws ImageOpException {
+        AffineTransformOp op = new AffineTransformOp(trafo, renderHint);
+        if (destImg == null) {
+            // like op.createCompatibleDestImage(img, null)
+            Rectangle bounds = op.getBounds2D(img).getBounds();
+            destImg = createTransformDest(op, bounds.x + bounds.width, bounds.y + bounds.height);
+        }
+        final BufferedImage dest = destImg;
+        final int w = dest.getWidth();
+        int h = dest.getHeight();
+        if (h <= transformBandHeight) {
+            return op.filter(img, dest);
+        }
+        BufferedImage srcImg = img;
+        ColorModel dcm = dest.getColorModel();
+        if (srcImg.getColorModel().getColorSpace().getType() != dcm.getColorSpace().getType()) {
+            /*
+             * AffineTransformOp would convert the whole source for every band
+             * (and fails for bands with some transforms) so we convert once
+             */
+            logger.debug("transform: converting source color space");
+            BufferedImage cimg = null;
+            if (srcImg.getColorModel().getTransparency() == Transparency.OPAQUE) {
+                cimg = newImage(srcImg.getWidth(), srcImg.getHeight(), BufferedImage.TYPE_INT_ARGB);
+            } else {
+                cimg = new BufferedImage(dcm, dcm.createCompatibleWritableRaster(srcImg.getWidth(),
+                        srcImg.getHeight()), dcm.isAlphaPremultiplied(), null);
+            }
+            srcImg = new ColorConvertOp(renderHint).filter(srcImg, cimg);
+            checkAborted();
+        } else if (srcImg.getType() == BufferedImage.TYPE_3BYTE_BGR
+                && (dest.getType() == BufferedImage.TYPE_INT_ARGB || dest.getType() == BufferedImage.TYPE_INT_RGB)) {
+            // interpolating from int pixels is much faster
+            BufferedImage cimg = newImage(srcImg.getWidth(), srcImg.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = cimg.createGraphics();
+            g.drawImage(srcImg, 0, 0, null);
+            g.dispose();
+            srcImg = cimg;
+            checkAborted();
+        }
+        final BufferedImage src = srcImg;
+        renderBands(h, new BandRenderer() {
+            public void render(int y, int bh) throws ImageOpException {
+                // shift band to the origin of the destination
+                AffineTransform bandTrafo = AffineTransform.getTranslateInstance(0, -y);
+                bandTrafo.concatenate(trafo);
+                AffineTransformOp bandOp = new AffineTransformOp(bandTrafo, renderHint);
+                bandOp.filter(src, dest.getSubimage(0, y, w, bh));
+            }
+        });
+        if (src != img && imagePool != null) {
+            // converted source is not needed any more
+            imagePool.releaseImage(src);
+        }
+        return dest;
+    }
+
+    /**
+     * Renders all bands of a destination image of height <code>h</code>.
+     * 
+     * If parallel rendering is enabled the bands are rendered by the current
+     * thread and up to bandThreads threads of the bandExecutor. The current
+     * thread does not wait for helper threads that have not started.
+     * 
+     * @param h
+     * @param renderer
+     * @throws ImageOpException
+     */
+    protected void renderBands(int h, final BandRenderer renderer) throws ImageOpException {
+        final int bandHeight = transformBandHeight;
+        final int numBands = (h + bandHeight - 1) / bandHeight;
+        ExecutorService executor = bandExecutor;
+        if (executor == null || numBands < 2) {
+            for (int y = 0; y < h; y += bandHeight) {
+                checkAborted();
+                renderer.render(y, Math.min(bandHeight, h - y));
+            }
+            return;
+        }
+        final int height = h;
+        final AtomicInteger nextBand = new AtomicInteger(0);
+        final AtomicReference<Throwable> error = new AtomicReference<Throwable>();
+        // number of running helpers, helpers that start after closing do nothing
+        final int[] running = new int[] { 0 };
+        final boolean[] closed = new boolean[] { false };
+        final Runnable bandWorker = new Runnable() {
+            public void run() {
+                try {
+                    for (int b = nextBand.getAndIncrement(); b < numBands; b = nextBand.getAndIncrement()) {
+                        if (aborted || error.get() != null) {
+                            return;
+                        }
+                        int y = b * bandHeight;
+                        renderer.render(y, Math.min(bandHeight, height - y));
+                    }
+                } catch (Throwable e) {
+                    error.compareAndSet(null, e);
+                }
+            }
+        };
+        Runnable helper = new Runnable() {
+            public void run() {
+                synchronized (running) {
+                    if (closed[0]) {
+                        return;
+                    }
+                    running[0] += 1;
+                }
+                try {
+                    bandWorker.run();
+                } finally {
+                    synchronized (running) {
+                        running[0] -= 1;
+                        running.notifyAll();
+                    }
+                }
+            }
+        };
+        // start helpers
+        int numHelpers = Math.min(numBands - 1, bandThreads);
+        List<Future<?>> helpers = new ArrayList<Future<?>>(numHelpers);
+        try {
+            for (int i = 0; i < numHelpers; ++i) {
+                helpers.add(executor.submit(helper));
+            }
+        } catch (RejectedExecutionException e) {
+            // executor shut down
+        }
+        // work ourselves
+        bandWorker.run();
+        // wait for running helpers
+        boolean interrupted = false;
+        synchronized (running) {
+            closed[0] = true;
+            while (running[0] > 0) {
+                try {
+                    running.wait();
+                } catch (InterruptedException e) {
+                    // stop helpers but wait for them
+                    aborted = true;
+                    interrupted = true;
+                }
+            }
+        }
+        for (Future<?> f : helpers) {
+            f.cancel(false);
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+        checkAborted();
+        Throwable e = error.get();
+        if (e instanceof ImageOpException) {
+            throw (ImageOpException) e;
+        } else if (e instanceof RuntimeException) {
+            throw (RuntimeException) e;
+        } else if (e != null) {
+            throw new ImageOpException("Error rendering image: " + e);
+        }
+    }
+
+    /**
+     * Sets the number of threads used to render the bands of one image
+     * operation in parallel. The threads are shared by all instances. 0 means
+     * no parallel rendering.
+     * 
+     * @param threads
+     */
+    public static synchronized void setParallelThreads(int threads) {
+        if (bandExecutor != null) {
+            bandExecutor.shutdown();
+            bandExecutor = null;
+        }
+        bandThreads = threads;
+        if (threads > 0) {
+            bandExecutor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+                private AtomicInteger count = new AtomicInteger(0);
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "digilib-band-" + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+    }
+
+    /**
+     * @return the number of threads for parallel rendering
+     */
+    public static int getParallelThreads() {
+        return bandThreads;
+    }
+
     public void crop(int x_off, int y_off, int width, int height) throws ImageOpException {
         // setup Crop
         img = img.getSubimage(x_off, y_off, width, height);
@@ -502,6 +1286,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
 
     public void rotate(double angle) throws ImageOpException {
         logger.debug("rotate: " + angle);
+        checkAborted();
         // setup rotation
         double rangle = Math.toRadians(angle);
         // center of rotation is center of image
@@ -519,17 +1304,99 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             // move image back on screen
             logger.debug("move rotation: xoff=" + xoff + " yoff=" + yoff);
             trafo.preConcatenate(AffineTransform.getTranslateInstance(-xoff, -yoff));
-            rotOp = new AffineTransformOp(trafo, renderHint);
         }
         // transform image
-        img = rotOp.filter(img, null);
+        setImage(transformInBands(trafo));
         logger.debug("rotated: " + img);
         // invalidate image size
         imageSize = null;
     }
 
+    /**
+     * Scales, mirrors and rotates the image with one AffineTransformOp.
+     * 
+     * The destination image has the same size as the result of the single
+     * operations one after another.
+     * 
+     * @see digilib.image.DocuImageImpl#scaleMirrorRotate(double, double,
+     *      boolean, boolean, double)
+     */
+    public void scaleMirrorRotate(double scaleX, double scaleY, boolean hmir, boolean vmir, double angle)
+            throws ImageOpException {
+        if (!hmir && !vmir && angle == 0) {
+            scale(scaleX, scaleY);
+            return;
+        }
+        logger.debug("scaleMirrorRotate: " + scaleX + " hmir=" + hmir + " vmir=" + vmir + " rot=" + angle);
+        checkAborted();
+        /* for downscaling in high quality the image is averaged or blurred first */
+        if ((scaleX <= 0.5) && (quality > 1)) {
+            if ((scaleY <= 1) && isAreaAverageSupported(img)) {
+                setImage(areaAverage(img, scaleX, scaleY));
+                scaleX = 1;
+                scaleY = 1;
+            } else {
+                blur((int) Math.floor(1 / scaleX));
+            }
+            checkAborted();
+        }
+        // scale
+        AffineTransform trafo = AffineTransform.getScaleInstance(scaleX, scaleY);
+        AffineTransformOp scaleOp = new AffineTransformOp(trafo, renderHint);
+        Rectangle bounds = scaleOp.getBounds2D(img).getBounds();
+        double w = bounds.x + bounds.width;
+        double h = bounds.y + bounds.height;
+        // mirror
+        if (hmir) {
+            trafo.preConcatenate(new AffineTransform(-1, 0, 0, 1, w, 0));
+        }
+        if (vmir) {
+            trafo.preConcatenate(new AffineTransform(1, 0, 0, -1, 0, h));
+        }
+        // rotate around the center
+        if (angle != 0) {
+            AffineTransform rot = AffineTransform.getRotateInstance(Math.toRadians(angle), w / 2, h / 2);
+            Rectangle2D rotbounds = rot.createTransformedShape(new Rectangle2D.Double(0, 0, w, h)).getBounds2D();
+            double xoff = rotbounds.getX();
+            double yoff = rotbounds.getY();
+            if (Math.abs(xoff) > epsilon || Math.abs(yoff) > epsilon) {
+                // move image back on screen
+                rot.preConcatenate(AffineTransform.getTranslateInstance(-xoff, -yoff));
+                rotbounds = rot.createTransformedShape(new Rectangle2D.Double(0, 0, w, h)).getBounds2D();
+            }
+            trafo.preConcatenate(rot);
+            bounds = rotbounds.getBounds();
+        }
+        // transform image
+        BufferedImage dest = createTransformDest(scaleOp, bounds.x + bounds.width, bounds.y + bounds.height);
+        setImage(transformInBands(trafo, dest));
+        logger.debug("transformed: " + img);
+        // invalidate image size
+        imageSize = null;
+    }
+
+    /**
+     * Creates a destination image for the current image like
+     * AffineTransformOp.createCompatibleDestImage() but with the given size.
+     * 
+     * @param op
+     * @param width
+     * @param height
+     * @return
+     */
+    protected BufferedImage createTransformDest(AffineTransformOp op, int width, int height) {
+        ColorModel cm = img.getColorModel();
+        boolean nearest = (op.getInterpolationType() == AffineTransformOp.TYPE_NEAREST_NEIGHBOR);
+        if (!nearest && (cm instanceof IndexColorModel || cm.getTransparency() == Transparency.OPAQUE)) {
+            return newImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        }
+        return new BufferedImage(cm, img.getRaster().createCompatibleWritableRaster(width, height),
+                cm.isAlphaPremultiplied(), null);
+    }
+
     public void mirror(double angle) throws ImageOpException {
         logger.debug("mirror: " + angle);
+        checkAborted();
         // setup mirror
         double mx = 1;
         double my = 1;
@@ -554,8 +1421,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             logger.error("invalid mirror angle " + angle);
             return;
         }
-        AffineTransformOp mirOp = new AffineTransformOp(new AffineTransform(mx, 0, 0, my, tx, ty), renderHint);
-        img = mirOp.filter(img, null);
+        setImage(transformInBands(new AffineTransform(mx, 0, 0, my, tx, ty)));
         // invalidate image size
         imageSize = null;
     }
@@ -563,6 +1429,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
     public void enhance(float mult, float add) throws ImageOpException {
         RescaleOp op = null;
         logger.debug("enhance: img=" + img);
+        checkAborted();
         if (needsRescaleRgba) {
             /*
              * Only one constant should work regardless of the number of bands
@@ -593,6 +1460,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
 
     public void enhanceRGB(float[] rgbm, float[] rgba) throws ImageOpException {
         logger.debug("enhanceRGB: rgbm=" + rgbm + " rgba=" + rgba);
+        checkAborted();
         /*
          * The number of constants must match the number of bands in the image.
          * We do only 3 (RGB) bands.
@@ -618,6 +1486,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
      * digilib.image.DocuImageImpl#colorOp(digilib.image.DocuImage.ColorOps)
      */
     public void colorOp(ColorOp colop) throws ImageOpException {
+        checkAborted();
         if (colop == ColorOp.GRAYSCALE) {
             /*
              * convert image to grayscale
@@ -631,7 +1500,7 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             }
             ColorConvertOp op = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), renderHint);
             // let filter create new image
-            img = op.filter(img, null);
+            setImage(op.filter(img, null));
         } else if (colop == ColorOp.NTSC_GRAY) {
             /*
              * convert image to grayscale NTSC-style: luminance = 0.2989*red +
@@ -650,9 +1519,9 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
             BandCombineOp op = new BandCombineOp(combineFn, renderHint);
             // BandCombineOp only works on Rasters so we create a
             // new image and use its Raster
-            BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
+            BufferedImage dest = newImage(img.getWidth(), img.getHeight(), BufferedImage.TYPE_BYTE_GRAY);
             op.filter(img.getRaster(), dest.getRaster());
-            img = dest;
+            setImage(dest);
         } else if (colop == ColorOp.INVERT) {
             /*
              * invert colors i.e. invert every channel
@@ -692,8 +1561,8 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
                     destType = BufferedImage.TYPE_3BYTE_BGR;
                 }
             }
-            BufferedImage dest = new BufferedImage(img.getWidth(), img.getHeight(), destType);
-            img = grayOp.filter(img, dest);
+            BufferedImage dest = newImage(img.getWidth(), img.getHeight(), destType);
+            setImage(grayOp.filter(img, dest));
             logger.debug("map_gray: image=" + img);
             // convert to false color
             LookupOp mapOp = new LookupOp(mapBgrByteTable, renderHint);
@@ -702,12 +1571,164 @@ public class ImageLoaderDocuImage extends ImageInfoDocuImage {
         }
     }
 
-    public void dispose() {
-        if (reader != null) {
-            reader.dispose();
+    /*
+     * Combines enhanceRGB, enhance and the per-band color operations into one
+     * lookup table that is applied in one pass over the image.
+     * 
+     * (non-Javadoc)
+     * 
+     * @see digilib.image.DocuImageImpl#enhanceAndColorOp(float[], float[],
+     * float, float, digilib.image.DocuImage.ColorOp)
+     */
+    public void enhanceAndColorOp(float[] rgbm, float[] rgba, float mult, float add, ColorOp colop)
+            throws ImageOpException {
+        checkAborted();
+        ColorModel cm = img.getColorModel();
+        int ncol = cm.getNumComponents();
+        boolean byteSamples = true;
+        for (int s : cm.getComponentSize()) {
+            byteSamples &= (s == 8);
         }
-        // is this necessary?
-        img = null;
+        if (cm instanceof IndexColorModel || cm.hasAlpha() || !byteSamples || (ncol != 1 && ncol != 3)) {
+            // use the separate operations
+            super.enhanceAndColorOp(rgbm, rgba, mult, add, colop);
+            return;
+        }
+        logger.debug("enhanceAndColorOp: img=" + img);
+        // combined lookup table for each band
+        byte[][] table = new byte[ncol][256];
+        boolean identity = true;
+        for (int b = 0; b < ncol; ++b) {
+            for (int i = 0; i < 256; ++i) {
+                int v = i;
+                if (rgbm != null && rgba != null && ncol == 3) {
+                    v = rescaleSample(v, rgbm[b], rgba[b]);
+                }
+                if (mult != 1f || add != 0f) {
+                    v = rescaleSample(v, mult, add);
+                }
+                if (colop == ColorOp.INVERT) {
+                    v = 255 - v;
+                }
+                table[b][i] = (byte) v;
+                identity &= (v == i);
+            }
+        }
+        if (colop == ColorOp.NTSC_GRAY && ncol == 3) {
+            // lookup and gray conversion in one pass
+            setImage(lookupNtscGray(table));
+        } else if (colop == ColorOp.MAP_GRAY_BGR && ncol == 1) {
+            // lookup and false color in one pass
+            setImage(lookupMapGrayBgr(table[0]));
+        } else {
+            if (!identity) {
+                LookupOp op = new LookupOp(new ByteLookupTable(0, table), renderHint);
+                op.filter(img, img);
+            }
+            if (colop == ColorOp.GRAYSCALE || colop == ColorOp.MAP_GRAY_BGR) {
+                // depends on all bands
+                colorOp(colop);
+            }
+        }
+    }
+
+    /**
+     * Returns p*mult+add clipped to 0..255 like RescaleOp.
+     * 
+     * @param p
+     * @param mult
+     * @param add
+     * @return
+     */
+    protected static int rescaleSample(int p, float mult, float add) {
+        int v = (int) (p * mult + add);
+        return (v < 0) ? 0 : ((v > 255) ? 255 : v);
+    }
+
+    /**
+     * Returns a new grayscale image (NTSC-style) of the current RGB image with
+     * the lookup table applied to the color bands first.
+     * 
+     * @param table
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage lookupNtscGray(byte[][] table) throws ImageOpException {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        Raster src = img.getRaster();
+        BufferedImage dest = newImage(w, h, BufferedImage.TYPE_BYTE_GRAY);
+        WritableRaster dst = dest.getRaster();
+        int[] rgb = new int[w * 3];
+        int[] gray = new int[w];
+        for (int y = 0; y < h; ++y) {
+            if (y % transformBandHeight == 0) {
+                checkAborted();
+            }
+            src.getPixels(0, y, w, 1, rgb);
+            for (int x = 0, i = 0; x < w; ++x, i += 3) {
+                int l = (int) (0.299f * (table[0][rgb[i]] & 0xff) + 0.587f * (table[1][rgb[i + 1]] & 0xff) 
+                        + 0.114f * (table[2][rgb[i + 2]] & 0xff));
+                gray[x] = (l > 255) ? 255 : l;
+            }
+            dst.setPixels(0, y, w, 1, gray);
+        }
+        return dest;
+    }
+
+    /**
+     * Returns a new false color image (like MAP_GRAY_BGR) of the current
+     * grayscale image with the lookup table applied first.
+     * 
+     * @param table
+     * @return
+     * @throws ImageOpException
+     */
+    protected BufferedImage lookupMapGrayBgr(byte[] table) throws ImageOpException {
+        int w = img.getWidth();
+        int h = img.getHeight();
+        int destType = needsMapBgr ? BufferedImage.TYPE_3BYTE_BGR : BufferedImage.TYPE_INT_RGB;
+        // convert all gray values like colorOp
+        ColorModel cm = img.getColorModel();
+        BufferedImage ramp = new BufferedImage(cm, cm.createCompatibleWritableRaster(256, 1), false, null);
+        for (int i = 0; i < 256; ++i) {
+            ramp.getRaster().setSample(i, 0, 0, table[i] & 0xff);
+        }
+        ColorConvertOp grayOp = new ColorConvertOp(ColorSpace.getInstance(ColorSpace.CS_GRAY), renderHint);
+        BufferedImage rampRgb = grayOp.filter(ramp, new BufferedImage(256, 1, destType));
+        // map to false colors
+        int[][] colors = new int[256][3];
+        int[] px = new int[3];
+        for (int i = 0; i < 256; ++i) {
+            rampRgb.getRaster().getPixel(i, 0, px);
+            mapBgrByteTable.lookupPixel(px, colors[i]);
+        }
+        // apply to the image
+        Raster src = img.getRaster();
+        BufferedImage dest = newImage(w, h, destType);
+        WritableRaster dst = dest.getRaster();
+        int[] gray = new int[w];
+        int[] rgb = new int[w * 3];
+        for (int y = 0; y < h; ++y) {
+            if (y % transformBandHeight == 0) {
+                checkAborted();
+            }
+            src.getSamples(0, y, w, 1, 0, gray);
+            for (int x = 0, i = 0; x < w; ++x, i += 3) {
+                int[] c = colors[gray[x]];
+                rgb[i] = c[0];
+                rgb[i + 1] = c[1];
+                rgb[i + 2] = c[2];
+            }
+            dst.setPixels(0, y, w, 1, rgb);
+        }
+        return dest;
+    }
+
+    public void dispose() {
+        releaseReader();
+        // return image buffer to the pool
+        setImage(null);
     }
 
     public Image getAwtImage() {
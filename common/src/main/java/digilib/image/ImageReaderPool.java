@@ -0,0 +1,151 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageReaderPool -- pool of reusable ImageReaders.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReader;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of reusable ImageReaders by mime-type.
+ * 
+ * Saves the service lookup and the setup of the decoder for every image. A
+ * reader is used by one thread at a time. Readers are reset when they are
+ * returned to the pool. The number of idle readers per mime-type is limited.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageReaderPool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageReaderPool.class);
+
+    /** idle readers by mime-type */
+    protected ConcurrentMap<String, BlockingQueue<ImageReader>> pools = new ConcurrentHashMap<String, BlockingQueue<ImageReader>>();
+
+    /** maximum number of idle readers per mime-type */
+    protected int maxReaders;
+
+    /** number of readers taken from the pool */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of newly created readers */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Create an ImageReaderPool that keeps at most <code>maxReaders</code> idle
+     * readers per mime-type.
+     * 
+     * @param maxReaders
+     */
+    public ImageReaderPool(int maxReaders) {
+        this.maxReaders = maxReaders;
+    }
+
+    /**
+     * Returns an ImageReader for the mime-type from the pool or a new
+     * ImageReader. Returns null if there is no reader for the mime-type.
+     * 
+     * @param mimeType
+     * @return
+     */
+    public ImageReader getReader(String mimeType) {
+        BlockingQueue<ImageReader> pool = pools.get(mimeType);
+        if (pool != null) {
+            ImageReader reader = pool.poll();
+            if (reader != null) {
+                hits.incrementAndGet();
+                return reader;
+            }
+        }
+        misses.incrementAndGet();
+        Iterator<ImageReader> readers = ImageIO.getImageReadersByMIMEType(mimeType);
+        if (!readers.hasNext()) {
+            return null;
+        }
+        ImageReader reader = readers.next();
+        logger.debug("ImageReaderPool: new reader " + reader.getClass() + " for " + mimeType);
+        return reader;
+    }
+
+    /**
+     * Returns the ImageReader for the mime-type to the pool. The reader is
+     * reset (or disposed if the pool is full).
+     * 
+     * @param mimeType
+     * @param reader
+     */
+    public void releaseReader(String mimeType, ImageReader reader) {
+        BlockingQueue<ImageReader> pool = pools.get(mimeType);
+        if (pool == null) {
+            pool = new ArrayBlockingQueue<ImageReader>(maxReaders);
+            BlockingQueue<ImageReader> p = pools.putIfAbsent(mimeType, pool);
+            if (p != null) {
+                pool = p;
+            }
+        }
+        try {
+            reader.reset();
+        } catch (RuntimeException e) {
+            logger.warn("ImageReaderPool: unable to reset reader: " + e);
+            reader.dispose();
+            return;
+        }
+        if (!pool.offer(reader)) {
+            // pool is full
+            reader.dispose();
+        }
+    }
+
+    /**
+     * @return the maximum number of idle readers per mime-type
+     */
+    public int getMaxReaders() {
+        return maxReaders;
+    }
+
+    /**
+     * @return
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+}
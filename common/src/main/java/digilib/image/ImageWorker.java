@@ -45,7 +45,13 @@ public class ImageWorker implements Callable<DocuImage> {
     private ImageJobDescription jobinfo;
 
     /** flag for stopping the thread */
-    private boolean stopNow = false;
+    private volatile boolean stopNow = false;
+
+    /** the DocuImage being rendered */
+    private volatile DocuImage docuImage = null;
+
+    /** the thread running the job */
+    private Thread workerThread = null;
 
     public ImageWorker(DigilibConfiguration dlConfig,
             ImageJobDescription jobinfo) {
@@ -59,6 +65,32 @@ public class ImageWorker implements Callable<DocuImage> {
      */
     public DocuImage call() throws FileOpException, IOException,
             ImageOpException {
+        synchronized (this) {
+            workerThread = Thread.currentThread();
+        }
+        boolean done = false;
+        try {
+            DocuImage img = render();
+            done = !stopNow;
+            return done ? img : null;
+        } finally {
+            synchronized (this) {
+                workerThread = null;
+                // clear interrupt from stopNow
+                Thread.interrupted();
+            }
+            if (!done && docuImage != null) {
+                // free the image of a stopped or failed job
+                docuImage.dispose();
+            }
+        }
+    }
+
+    /**
+     * render the image
+     */
+    protected DocuImage render() throws FileOpException, IOException,
+            ImageOpException {
 
         logger.debug("ImageWorker starting");
         long startTime = System.currentTimeMillis();
@@ -67,7 +99,7 @@ public class ImageWorker implements Callable<DocuImage> {
             return null;
         }
 
-        DocuImage docuImage = jobinfo.getDocuImage();
+        docuImage = jobinfo.getDocuImage();
         if (docuImage == null) {
             docuImage = DocuImageFactory.getInstance();
             if (docuImage == null) {
@@ -77,6 +109,8 @@ public class ImageWorker implements Callable<DocuImage> {
 
         // set interpolation quality
         docuImage.setQuality(jobinfo.getScaleQual());
+        // set output encoding parameters
+        docuImage.setEncodeParams(jobinfo.getEncodeParams());
 
         Rectangle loadRect = jobinfo.getOuterUserImgArea().getBounds();
         double scaleXY = jobinfo.getScaleXY();
@@ -109,8 +143,6 @@ public class ImageWorker implements Callable<DocuImage> {
                 logger.debug("ImageWorker stopping (after loading and cropping)");
                 return null;
             }
-            // and scale
-            docuImage.scale(scaleXY, scaleXY);
         } else {
             // else load and crop the whole file
             docuImage.loadImage(jobinfo.getInput());
@@ -124,52 +156,34 @@ public class ImageWorker implements Callable<DocuImage> {
                 logger.debug("ImageWorker stopping (after cropping)");
                 return null;
             }
-            docuImage.scale(scaleXY, scaleXY);
         }
 
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after scaling)");
-            return null;
-        }
-        // mirror image
+        // scale, mirror and rotate image in one step
         // operation mode: "hmir": mirror horizontally, "vmir": mirror
         // vertically
-        if (jobinfo.hasOption("hmir")) {
-            docuImage.mirror(0);
-        }
-        if (jobinfo.hasOption("vmir")) {
-            docuImage.mirror(90);
-        }
-
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after mirroring)");
-            return null;
-        }
-        // rotate image
-        if (jobinfo.getAsFloat("rot") != 0d) {
-            docuImage.rotate(jobinfo.getAsFloat("rot"));
-            /*
-             * if (jobinfo.get_wholeRotArea()) { // crop to the inner bounding
-             * box float xcrop = (float) (docuImage.getWidth() -
-             * jobinfo.get_innerUserImgArea().getWidth() scaleXY); float ycrop =
-             * (float) (docuImage.getHeight() -
-             * jobinfo.get_innerUserImgArea().getHeight() scaleXY); if ((xcrop >
-             * 0) || (ycrop > 0)) { // only crop smaller xcrop = (xcrop > 0) ?
-             * xcrop : 0; ycrop = (ycrop > 0) ? ycrop : 0; // crop image
-             * docuImage.crop((int) (xcrop / 2), (int) (ycrop / 2), (int)
-             * (docuImage.getWidth() - xcrop), (int) (docuImage.getHeight() -
-             * ycrop)); } }
-             */
-
-        }
+        docuImage.scaleMirrorRotate(scaleXY, scaleXY, jobinfo.hasOption("hmir"), jobinfo.hasOption("vmir"),
+                jobinfo.getAsFloat("rot"));
+        /*
+         * if (jobinfo.get_wholeRotArea()) { // crop to the inner bounding
+         * box float xcrop = (float) (docuImage.getWidth() -
+         * jobinfo.get_innerUserImgArea().getWidth() scaleXY); float ycrop =
+         * (float) (docuImage.getHeight() -
+         * jobinfo.get_innerUserImgArea().getHeight() scaleXY); if ((xcrop >
+         * 0) || (ycrop > 0)) { // only crop smaller xcrop = (xcrop > 0) ?
+         * xcrop : 0; ycrop = (ycrop > 0) ? ycrop : 0; // crop image
+         * docuImage.crop((int) (xcrop / 2), (int) (ycrop / 2), (int)
+         * (docuImage.getWidth() - xcrop), (int) (docuImage.getHeight() -
+         * ycrop)); } }
+         */
 
         if (stopNow) {
-            logger.debug("ImageWorker stopping (after rotating)");
+            logger.debug("ImageWorker stopping (after transforming)");
             return null;
         }
         // color modification
         float[] paramRGBM = jobinfo.getRGBM();
         float[] paramRGBA = jobinfo.getRGBA();
+        float[] rgbMult = null;
         if ((paramRGBM != null) || (paramRGBA != null)) {
             // make sure we actually have two arrays
             if (paramRGBM == null) {
@@ -179,33 +193,20 @@ public class ImageWorker implements Callable<DocuImage> {
                 paramRGBA = new float[3];
             }
             // calculate "contrast" values (c=2^x)
-            float[] mult = new float[3];
+            rgbMult = new float[3];
             for (int i = 0; i < 3; i++) {
-                mult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
+                rgbMult[i] = (float) Math.pow(2, (float) paramRGBM[i]);
             }
-            docuImage.enhanceRGB(mult, paramRGBA);
-        }
-
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhanceRGB)");
-            return null;
         }
         // contrast and brightness enhancement
         float paramCONT = jobinfo.getAsFloat("cont");
         float paramBRGT = jobinfo.getAsFloat("brgt");
-        if ((paramCONT != 0f) || (paramBRGT != 0f)) {
-            float mult = (float) Math.pow(2, paramCONT);
-            docuImage.enhance(mult, paramBRGT);
-        }
-
-        if (stopNow) {
-            logger.debug("ImageWorker stopping (after enhance)");
-            return null;
-        }
+        float mult = (float) Math.pow(2, paramCONT);
         // color operation
         DocuImage.ColorOp colop = jobinfo.getColOp();
-        if (colop != null) {
-            docuImage.colorOp(colop);
+        if (rgbMult != null || paramCONT != 0f || paramBRGT != 0f || colop != null) {
+            // all color changes in one step
+            docuImage.enhanceAndColorOp(rgbMult, paramRGBA, mult, paramBRGT, colop);
         }
 
         logger.debug("rendered in " + (System.currentTimeMillis() - startTime)
@@ -216,9 +217,20 @@ public class ImageWorker implements Callable<DocuImage> {
 
     /**
      * Set the stopNow flag. Thread stops at the next occasion.
+     * 
+     * Aborts the running image operation and interrupts the thread.
      */
     public void stopNow() {
         this.stopNow = true;
+        DocuImage di = docuImage;
+        if (di != null) {
+            di.abort();
+        }
+        synchronized (this) {
+            if (workerThread != null) {
+                workerThread.interrupt();
+            }
+        }
     }
     
 }
@@ -0,0 +1,152 @@
+package digilib.image;
+
+/*
+ * #%L
+ * ImageWriterPool -- pool of reusable ImageWriters.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriter;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Pool of reusable ImageWriters by format name.
+ * 
+ * Saves the service lookup and the setup of the encoder for every image. A
+ * writer is used by one thread at a time. Writers are reset when they are
+ * returned to the pool. The number of idle writers per format is limited.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageWriterPool {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageWriterPool.class);
+
+    /** idle writers by format name */
+    protected ConcurrentMap<String, BlockingQueue<ImageWriter>> pools = new ConcurrentHashMap<String, BlockingQueue<ImageWriter>>();
+
+    /** maximum number of idle writers per format */
+    protected int maxWriters;
+
+    /** number of writers taken from the pool */
+    protected AtomicInteger hits = new AtomicInteger(0);
+
+    /** number of newly created writers */
+    protected AtomicInteger misses = new AtomicInteger(0);
+
+    /**
+     * Create an ImageWriterPool that keeps at most <code>maxWriters</code> idle
+     * writers per format.
+     * 
+     * @param maxWriters
+     */
+    public ImageWriterPool(int maxWriters) {
+        this.maxWriters = maxWriters;
+    }
+
+    /**
+     * Returns an ImageWriter for the format from the pool or a new
+     * ImageWriter. Returns null if there is no writer for the format.
+     * 
+     * @param format
+     *            format name, e.g. "jpeg"
+     * @return
+     */
+    public ImageWriter getWriter(String format) {
+        BlockingQueue<ImageWriter> pool = pools.get(format);
+        if (pool != null) {
+            ImageWriter writer = pool.poll();
+            if (writer != null) {
+                hits.incrementAndGet();
+                return writer;
+            }
+        }
+        misses.incrementAndGet();
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(format);
+        if (!writers.hasNext()) {
+            return null;
+        }
+        ImageWriter writer = writers.next();
+        logger.debug("ImageWriterPool: new writer " + writer.getClass() + " for " + format);
+        return writer;
+    }
+
+    /**
+     * Returns the ImageWriter for the format to the pool. The writer is reset
+     * (or disposed if the pool is full).
+     * 
+     * @param format
+     * @param writer
+     */
+    public void releaseWriter(String format, ImageWriter writer) {
+        BlockingQueue<ImageWriter> pool = pools.get(format);
+        if (pool == null) {
+            pool = new ArrayBlockingQueue<ImageWriter>(maxWriters);
+            BlockingQueue<ImageWriter> p = pools.putIfAbsent(format, pool);
+            if (p != null) {
+                pool = p;
+            }
+        }
+        try {
+            writer.reset();
+        } catch (RuntimeException e) {
+            logger.warn("ImageWriterPool: unable to reset writer: " + e);
+            writer.dispose();
+            return;
+        }
+        if (!pool.offer(writer)) {
+            // pool is full
+            writer.dispose();
+        }
+    }
+
+    /**
+     * @return the maximum number of idle writers per format
+     */
+    public int getMaxWriters() {
+        return maxWriters;
+    }
+
+    /**
+     * @return
+     */
+    public int getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return
+     */
+    public int getMisses() {
+        return misses.get();
+    }
+
+}
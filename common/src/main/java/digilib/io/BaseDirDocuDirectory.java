@@ -28,6 +28,8 @@ package digilib.io;
 import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
@@ -46,6 +48,8 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     protected Directory[] dirs = null;
     /** list of base directories */
     protected String[] baseDirNames = null;
+    /** lock for reading the directory */
+    protected ReentrantLock readLock = new ReentrantLock();
 
     /**
      * Configure object with digilib directory path and a parent DocuDirCache.
@@ -76,12 +80,44 @@ public class BaseDirDocuDirectory extends DocuDirectory {
         meta = MetaFactory.getDirMetaInstance();
     }
 
+    /**
+     * Reads the directory and replaces the list of files.
+     * 
+     * The new list is built and sorted before it replaces the old list so
+     * readers always see a complete list. If the directory has been read
+     * before and another thread is reading it already this method returns
+     * at once and the old list is used until the new list is ready.
+     * 
+     * @see digilib.io.DocuDirectory#readDir()
+     */
     @Override
-    public synchronized boolean readDir() {
-    	// check directory first
-    	if (!isValid) {
-    		return false;
-    	}
+    public boolean readDir() {
+        // check directory first
+        if (!isValid) {
+            return false;
+        }
+        if (isRead()) {
+            if (!readLock.tryLock()) {
+                // another thread is reading: use the old list
+                return true;
+            }
+        } else {
+            // no list yet: wait for it
+            readLock.lock();
+        }
+        try {
+            return readDirLocked();
+        } finally {
+            readLock.unlock();
+        }
+    }
+
+    /**
+     * Reads the directory (holding readLock).
+     * 
+     * @return
+     */
+    protected boolean readDirLocked() {
     	// re-check modification time because the thread may have slept
     	if (dir.lastModified() <= dirMTime) {
     		return true;
@@ -120,24 +156,11 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     	}
     
     	File[] fileList = FileOps.listFiles(allFiles, FileOps.filterForClass(fileClass));
-    	// number of files in the directory
-    	int numFiles = fileList.length;
-    	if (numFiles > 0) {
-    		// create new list
-    		ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
-    		files = dl;
-    		for (File f : fileList) {
-    			DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
-    			df.setParent(this);
-    			// add the file to our list
-    			dl.add(df);
-    		}
-    		/*
-    		 * we sort the ArrayList (the list of files) for binarySearch to work 
-    		 * (DocuDirent's natural sort order is by filename)
-    		 */
-    		Collections.sort(dl);
-    	}
+    	List<DocuDirent> dl = createFileList(fileList);
+    	// replace the list (readers keep the old list)
+    	files = dl;
+    	// identify the files in the background
+    	identifyFiles(dl);
     	// clear the scaled directories
     	for (Directory d: dirs) {
     		if (d != null) {
@@ -150,4 +173,30 @@ public class BaseDirDocuDirectory extends DocuDirectory {
     	return isValid;
     }
 
+    /**
+     * Returns the sorted list of DocuDirents for the files (using the
+     * parallel directories).
+     * 
+     * @param fileList
+     * @return
+     */
+    protected List<DocuDirent> createFileList(File[] fileList) {
+    	// number of files in the directory
+    	int numFiles = fileList.length;
+    	// create new list
+    	ArrayList<DocuDirent> dl = new ArrayList<DocuDirent>(numFiles);
+    	for (File f : fileList) {
+    		DocuDirent df = FileOps.fileForClass(fileClass, f, dirs);
+    		df.setParent(this);
+    		// add the file to our list
+    		dl.add(df);
+    	}
+    	/*
+    	 * we sort the ArrayList (the list of files) for binarySearch to work 
+    	 * (DocuDirent's natural sort order is by filename)
+    	 */
+    	Collections.sort(dl);
+    	return dl;
+    }
+
 }
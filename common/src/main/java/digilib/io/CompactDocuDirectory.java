@@ -0,0 +1,131 @@
+package digilib.io;
+
+/*
+ * #%L
+ * CompactDocuDirectory -- DocuDirectory with a compact list of image files.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+
+import digilib.io.FileOps.FileClass;
+
+/**
+ * BaseDirDocuDirectory that keeps the list of image files in a
+ * {@link CompactFileList} for directories with very many files.
+ * 
+ * ImageFileSets are created when they are used instead of for all files when
+ * the directory is read. Use it by setting docudirectory-class to
+ * digilib.io.CompactDocuDirectory.
+ * 
+ * @author casties
+ * 
+ */
+public class CompactDocuDirectory extends BaseDirDocuDirectory {
+
+    /** maximum number of cached ImageFileSets per directory */
+    protected static int fileSetCacheSize = 1000;
+
+    /**
+     * Returns a CompactFileList for image files.
+     * 
+     * @see digilib.io.BaseDirDocuDirectory#createFileList(java.io.File[])
+     */
+    @Override
+    protected List<DocuDirent> createFileList(File[] fileList) {
+        if (fileClass != FileClass.IMAGE) {
+            return super.createFileList(fileList);
+        }
+        String[] fileNames = new String[fileList.length];
+        for (int i = 0; i < fileList.length; ++i) {
+            fileNames[i] = fileList[i].getName();
+        }
+        // same order as the DocuDirents
+        Arrays.sort(fileNames);
+        return new CompactFileList(fileNames, this, dirs, fileSetCacheSize);
+    }
+
+    /**
+     * Searches the names in a CompactFileList without creating ImageFileSets.
+     * 
+     * @see digilib.io.DocuDirectory#indexOf(java.util.List, java.lang.String)
+     */
+    @Override
+    protected int indexOf(List<DocuDirent> fileList, String fn) {
+        if (fileList instanceof CompactFileList) {
+            return ((CompactFileList) fileList).indexOfName(fn);
+        }
+        return super.indexOf(fileList, fn);
+    }
+
+    /**
+     * Identifies the files of a CompactFileList by index so the sizes are
+     * stored in the list.
+     * 
+     * @see digilib.io.DocuDirectory#identifyFiles(java.util.List)
+     */
+    @Override
+    protected void identifyFiles(List<DocuDirent> fileList) {
+        if (!(fileList instanceof CompactFileList)) {
+            super.identifyFiles(fileList);
+            return;
+        }
+        ThreadPoolExecutor executor = identifyExecutor;
+        if (executor == null) {
+            return;
+        }
+        final CompactFileList cfl = (CompactFileList) fileList;
+        for (int i = 0; i < cfl.size(); ++i) {
+            final int index = i;
+            try {
+                executor.execute(new Runnable() {
+                    public void run() {
+                        cfl.identify(index);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                logger.debug("identify queue full: identifying remaining files of " + dirName + " on demand");
+                break;
+            }
+        }
+    }
+
+    /**
+     * Sets the maximum number of cached ImageFileSets per directory.
+     * 
+     * @param size
+     */
+    public static void setFileSetCacheSize(int size) {
+        fileSetCacheSize = size;
+    }
+
+    /**
+     * @return the maximum number of cached ImageFileSets per directory
+     */
+    public static int getFileSetCacheSize() {
+        return fileSetCacheSize;
+    }
+
+}
@@ -0,0 +1,428 @@
+package digilib.io;
+
+/*
+ * #%L
+ * CompactFileList -- compact list of the image files of a directory.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+
+import java.io.File;
+import java.util.AbstractList;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import digilib.meta.FileMeta;
+import digilib.util.ImageSize;
+
+/**
+ * Read-only list of the image files of a directory that keeps the file names
+ * and image sizes in arrays instead of ImageFileSet objects.
+ * 
+ * The names are kept sorted in one char array. For each scaled directory the
+ * list keeps the suffix of the file name (the part after the basename of the
+ * hi-res file) as index into a table. Sizes and mime-types are kept in arrays
+ * per resolution level once the images have been identified.
+ * 
+ * ImageFileSets are created on demand by get() and kept in a small LRU cache.
+ * Sizes and file metadata of ImageFileSets leaving the cache are stored in the
+ * arrays so the next ImageFileSet for the file does not have to identify the
+ * images again.
+ * 
+ * @author casties
+ * 
+ */
+public class CompactFileList extends AbstractList<DocuDirent> {
+
+    /** known mime-types (the code of a mime-type is its index + 1) */
+    protected static List<String> mimetypes = new ArrayList<String>();
+
+    /** the directory of the files */
+    protected Directory parentDir;
+
+    /** parallel directories for scaled images (the first is parentDir) */
+    protected Directory[] dirs;
+
+    /** number of files */
+    protected int size;
+
+    /** sorted file names */
+    protected char[] names;
+
+    /** start of the name of each file in names (with the end at [size]) */
+    protected int[] offsets;
+
+    /** file name suffixes per scaled directory */
+    protected String[][] suffixes;
+
+    /** suffix code per scaled directory and file (index + 1, 0 means no file) */
+    protected short[][] suffixCodes;
+
+    /** image width per level and file (null if no image is identified) */
+    protected int[][] widths;
+
+    /** image height per level and file */
+    protected int[][] heights;
+
+    /** mime-type code per level and file */
+    protected byte[][] mimeCodes;
+
+    /** file metadata of files that have metadata */
+    protected Map<Integer, FileMeta> metas = new HashMap<Integer, FileMeta>();
+
+    /** maximum number of cached ImageFileSets */
+    protected int cacheSize;
+
+    /** cached ImageFileSets in LRU order */
+    protected LinkedHashMap<Integer, ImageFileSet> cache;
+
+    /**
+     * Create a CompactFileList.
+     * 
+     * @param sortedNames
+     *            sorted names of the files in parentDir
+     * @param parentDir
+     *            the directory
+     * @param dirs
+     *            the parallel directories for scaled images
+     * @param cacheSize
+     *            the maximum number of cached ImageFileSets
+     */
+    public CompactFileList(String[] sortedNames, Directory parentDir, Directory[] dirs, int cacheSize) {
+        this.parentDir = parentDir;
+        this.dirs = dirs;
+        this.cacheSize = cacheSize;
+        size = sortedNames.length;
+        // all names in one array
+        offsets = new int[size + 1];
+        int len = 0;
+        for (int i = 0; i < size; ++i) {
+            offsets[i] = len;
+            len += sortedNames[i].length();
+        }
+        offsets[size] = len;
+        names = new char[len];
+        for (int i = 0; i < size; ++i) {
+            sortedNames[i].getChars(0, sortedNames[i].length(), names, offsets[i]);
+        }
+        // suffixes of the files in the scaled directories
+        int nd = dirs.length;
+        suffixes = new String[nd][];
+        suffixCodes = new short[nd][];
+        for (int d = 1; d < nd; ++d) {
+            if (dirs[d] == null) {
+                continue;
+            }
+            List<String> sl = new ArrayList<String>();
+            Map<String, Short> codes = new HashMap<String, Short>();
+            short[] sc = new short[size];
+            for (int i = 0; i < size; ++i) {
+                String fn = sortedNames[i];
+                String sfn = ImageFileSet.findFilename(dirs[d], fn);
+                if (sfn == null) {
+                    continue;
+                }
+                String suffix = sfn.substring(FileOps.basename(fn).length());
+                Short code = codes.get(suffix);
+                if (code == null) {
+                    if (sl.size() >= Short.MAX_VALUE) {
+                        // too many different suffixes
+                        continue;
+                    }
+                    sl.add(suffix);
+                    code = (short) sl.size();
+                    codes.put(suffix, code);
+                }
+                sc[i] = code;
+            }
+            suffixes[d] = sl.toArray(new String[sl.size()]);
+            suffixCodes[d] = sc;
+        }
+        widths = new int[nd][];
+        heights = new int[nd][];
+        mimeCodes = new byte[nd][];
+        cache = new LinkedHashMap<Integer, ImageFileSet>(16, 0.75f, true) {
+            private static final long serialVersionUID = 1L;
+
+            protected boolean removeEldestEntry(Map.Entry<Integer, ImageFileSet> eldest) {
+                if (size() > CompactFileList.this.cacheSize) {
+                    store(eldest.getKey(), eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /*
+     * (non-Javadoc)
+     * 
+     * @see java.util.AbstractCollection#size()
+     */
+    @Override
+    public int size() {
+        return size;
+    }
+
+    /**
+     * Returns the ImageFileSet for the file at the index (from the cache or
+     * new).
+     * 
+     * @see java.util.AbstractList#get(int)
+     */
+    @Override
+    public synchronized DocuDirent get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException("Index: " + index + ", Size: " + size);
+        }
+        ImageFileSet fs = cache.get(index);
+        if (fs == null) {
+            fs = createFileSet(index);
+            cache.put(index, fs);
+        }
+        return fs;
+    }
+
+    /**
+     * Returns the name of the file at the index.
+     * 
+     * @param index
+     * @return
+     */
+    public String getName(int index) {
+        return new String(names, offsets[index], offsets[index + 1] - offsets[index]);
+    }
+
+    /**
+     * Searches for the file with the name <code>fn</code> (or the same name
+     * without extension) and returns its index. Returns -1 if the file cannot
+     * be found.
+     * 
+     * @param fn
+     * @return
+     */
+    public int indexOfName(String fn) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int c = compareName(mid, fn);
+            if (c < 0) {
+                lo = mid + 1;
+            } else if (c > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        // try closest matches without extension
+        int idx = lo;
+        if (idx < size && isBasename(idx, fn)) {
+            return idx;
+        } else if (idx > 0 && isBasename(idx - 1, fn)) {
+            return idx - 1;
+        } else if (idx + 1 < size && isBasename(idx + 1, fn)) {
+            return idx + 1;
+        }
+        return -1;
+    }
+
+    /**
+     * Compares the name of the file at the index with <code>fn</code> (like
+     * String.compareTo).
+     * 
+     * @param index
+     * @param fn
+     * @return
+     */
+    protected int compareName(int index, String fn) {
+        int start = offsets[index];
+        int len = offsets[index + 1] - start;
+        int n = Math.min(len, fn.length());
+        for (int i = 0; i < n; ++i) {
+            int c = names[start + i] - fn.charAt(i);
+            if (c != 0) {
+                return c;
+            }
+        }
+        return len - fn.length();
+    }
+
+    /**
+     * Returns if <code>fn</code> or the basename of <code>fn</code> is the
+     * basename of the file at the index.
+     * 
+     * @param index
+     * @param fn
+     * @return
+     */
+    protected boolean isBasename(int index, String fn) {
+        String dfn = FileOps.basename(getName(index));
+        return (dfn.equals(fn) || dfn.equals(FileOps.basename(fn)));
+    }
+
+    /**
+     * Identifies all images of the file at the index and stores the sizes.
+     * 
+     * Uses a new ImageFileSet that is not put in the cache (so the cache keeps
+     * the ImageFileSets in use). Files that have been identified or are in the
+     * cache are skipped.
+     * 
+     * @param index
+     */
+    public void identify(int index) {
+        ImageFileSet fs;
+        synchronized (this) {
+            if ((widths[0] != null && widths[0][index] > 0) || cache.containsKey(index)) {
+                return;
+            }
+            fs = createFileSet(index);
+        }
+        for (ListIterator<ImageInput> i = fs.getHiresIterator(); i.hasNext();) {
+            i.next().getSize();
+        }
+        synchronized (this) {
+            store(index, fs);
+        }
+    }
+
+    /**
+     * Creates a new ImageFileSet for the file at the index with the stored
+     * sizes and metadata.
+     * 
+     * @param index
+     * @return
+     */
+    protected ImageFileSet createFileSet(int index) {
+        String fn = getName(index);
+        String basename = FileOps.basename(fn);
+        int nd = dirs.length;
+        String[] scaledNames = new String[nd];
+        for (int d = 1; d < nd; ++d) {
+            if (suffixCodes[d] != null && suffixCodes[d][index] > 0) {
+                scaledNames[d] = basename + suffixes[d][suffixCodes[d][index] - 1];
+            }
+        }
+        ImageFileSet fs = new ImageFileSet(new File(parentDir.getDir(), fn), dirs, scaledNames);
+        fs.setParent(parentDir);
+        // set the known sizes
+        int l = 0;
+        for (int d = 0; d < nd; ++d) {
+            if (d > 0 && scaledNames[d] == null) {
+                continue;
+            }
+            ImageInput ii = fs.get(l++);
+            if (widths[d] != null && widths[d][index] > 0 && heights[d][index] > 0 && mimeCodes[d][index] > 0) {
+                ii.setMimetype(getMimetype(mimeCodes[d][index]));
+                ii.setSize(new ImageSize(widths[d][index], heights[d][index]));
+            }
+        }
+        FileMeta fm = metas.get(index);
+        if (fm != null) {
+            fs.setMeta(fm);
+        }
+        return fs;
+    }
+
+    /**
+     * Stores the sizes and metadata of the ImageFileSet of the file at the
+     * index.
+     * 
+     * Sizes are not stored for ImageFileSets with more images than files
+     * (resolution levels in the file or new prescaled files). These are
+     * identified again (e.g. from the ImageHeaderIndex).
+     * 
+     * @param index
+     * @param fs
+     */
+    protected void store(int index, ImageFileSet fs) {
+        FileMeta fm = fs.getMeta();
+        if (fm != null && fm.getFileMeta() != null) {
+            metas.put(index, fm);
+        }
+        int nd = dirs.length;
+        int nf = 1;
+        for (int d = 1; d < nd; ++d) {
+            if (suffixCodes[d] != null && suffixCodes[d][index] > 0) {
+                ++nf;
+            }
+        }
+        if (fs.size() != nf) {
+            return;
+        }
+        int l = 0;
+        for (int d = 0; d < nd; ++d) {
+            if (d > 0 && (suffixCodes[d] == null || suffixCodes[d][index] == 0)) {
+                continue;
+            }
+            ImageInput ii = fs.get(l++);
+            if (!ii.isChecked() || !ii.hasMimetype()) {
+                continue;
+            }
+            ImageSize is = ii.getSize();
+            byte mc = getMimeCode(ii.getMimetype());
+            if (is == null || mc == 0) {
+                continue;
+            }
+            if (widths[d] == null) {
+                widths[d] = new int[size];
+                heights[d] = new int[size];
+                mimeCodes[d] = new byte[size];
+            }
+            widths[d][index] = is.getWidth();
+            heights[d][index] = is.getHeight();
+            mimeCodes[d][index] = mc;
+        }
+    }
+
+    /**
+     * Returns the code for the mime-type (0 if there are too many
+     * mime-types).
+     * 
+     * @param mimetype
+     * @return
+     */
+    protected static synchronized byte getMimeCode(String mimetype) {
+        int i = mimetypes.indexOf(mimetype);
+        if (i < 0) {
+            if (mimetypes.size() >= Byte.MAX_VALUE) {
+                return 0;
+            }
+            mimetypes.add(mimetype);
+            i = mimetypes.size() - 1;
+        }
+        return (byte) (i + 1);
+    }
+
+    /**
+     * Returns the mime-type for the code.
+     * 
+     * @param code
+     * @return
+     */
+    protected static synchronized String getMimetype(byte code) {
+        return mimetypes.get(code - 1);
+    }
+
+}
@@ -30,6 +30,8 @@ package digilib.io;
 
 import java.io.File;
 import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
 
 import org.apache.log4j.Logger;
 
@@ -47,6 +49,12 @@ public class Directory {
 	protected Directory parent = null;
 	/** list of filenames in the directory */
 	protected String[] list = null;
+	/** index of the filenames by name */
+	protected Map<String, Integer> names = null;
+	/** index of the filenames by basename (-2 if the basename is not unique) */
+	protected Map<String, Integer> basenames = null;
+	/** persistent index of the image headers (null if not loaded) */
+	protected ImageHeaderIndex headerIndex = null;
 
 	/** Default constructor.
 	 * 
@@ -90,10 +98,11 @@ public class Directory {
 	public boolean readDir() {
 		if (dir != null) {
 			//logger.debug("reading dir: "+dir.getPath());
-			list = dir.list();
-			if (list != null) {
-				Arrays.sort(list);
+			String[] fileNames = dir.list();
+			if (fileNames != null) {
+				Arrays.sort(fileNames);
 			}
+			setFilenames(fileNames);
 			//logger.debug("  done");
 		}
 		return (list != null);
@@ -139,10 +148,81 @@ public class Directory {
 	 * @param filenames The filenames to set.
 	 */
 	public void setFilenames(String[] filenames) {
+		if (filenames != null) {
+			Map<String, Integer> ni = new HashMap<String, Integer>(filenames.length * 4 / 3 + 1);
+			Map<String, Integer> bi = new HashMap<String, Integer>(filenames.length * 4 / 3 + 1);
+			for (int i = 0; i < filenames.length; ++i) {
+				ni.put(filenames[i], i);
+				String bn = FileOps.basename(filenames[i]);
+				if (bi.put(bn, i) != null) {
+					// not unique
+					bi.put(bn, -2);
+				}
+			}
+			this.names = ni;
+			this.basenames = bi;
+		} else {
+			this.names = null;
+			this.basenames = null;
+		}
 		this.list = filenames;
 	}
 	
 	public void clearFilenames() {
 		this.list = null;
+		this.names = null;
+		this.basenames = null;
+	}
+
+	/**
+	 * Returns the index of the file with the name <code>fn</code> or with the
+	 * same name without extension in the filenames. Returns -1 if there is no
+	 * such file.
+	 * 
+	 * @param fn
+	 * @return
+	 */
+	public int indexOfFilename(String fn) {
+		String[] fileNames = list;
+		Map<String, Integer> ni = names;
+		Map<String, Integer> bi = basenames;
+		if (fileNames == null || ni == null) {
+			return -1;
+		}
+		Integer idx = ni.get(fn);
+		if (idx != null) {
+			return idx;
+		}
+		String baseFn = FileOps.basename(fn);
+		idx = bi.get(baseFn);
+		if (idx == null) {
+			return -1;
+		} else if (idx >= 0) {
+			return idx;
+		}
+		// not unique: try closest matches without extension
+		int i = -Arrays.binarySearch(fileNames, fn) - 1;
+		if ((i < fileNames.length) && FileOps.basename(fileNames[i]).equals(baseFn)) {
+			return i;
+		} else if ((i > 0) && FileOps.basename(fileNames[i - 1]).equals(baseFn)) {
+			return i - 1;
+		} else if ((i + 1 < fileNames.length) && FileOps.basename(fileNames[i + 1]).equals(baseFn)) {
+			return i + 1;
+		}
+		return -1;
+	}
+
+	/**
+	 * Returns the persistent index of the image headers in this directory.
+	 * Returns null if the index is not used.
+	 * 
+	 * @return
+	 */
+	public synchronized ImageHeaderIndex getHeaderIndex() {
+		File indexDir = ImageHeaderIndex.getIndexDir();
+		if (headerIndex == null && indexDir != null && dir != null) {
+			headerIndex = new ImageHeaderIndex(dir, indexDir);
+		}
+		return headerIndex;
 	}
 }
@@ -27,8 +27,20 @@ package digilib.io;
  * Created on 03.03.2003
  */
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
@@ -59,6 +71,30 @@ public class DocuDirCache {
 	/** number of cache misses */
 	protected AtomicInteger misses = new AtomicInteger(0);
 
+	/** number of evicted directories */
+	protected AtomicInteger evictions = new AtomicInteger(0);
+
+	/** maximum number of directories (0 means no limit) */
+	protected int maxDirs = 0;
+
+	/** eviction is running */
+	protected AtomicBoolean evicting = new AtomicBoolean(false);
+
+	/** nonexistent directories with the expiry time of the entry */
+	protected ConcurrentMap<String, Long> missing = new ConcurrentHashMap<String, Long>();
+
+	/** time to remember nonexistent directories in ms (0 means not at all) */
+	protected long missingTtl = 0;
+
+	/** maximum number of remembered nonexistent directories */
+	protected int maxMissing = 0;
+
+	/** number of lookups answered by the nonexistent directories */
+	protected AtomicInteger missingHits = new AtomicInteger(0);
+
+	/** executor for checking the directories in the background (null if not used) */
+	protected ScheduledExecutorService checker = null;
+
 	/**
 	 * Constructor with digilib configuration and file class.
 	 * 
@@ -68,6 +104,11 @@ public class DocuDirCache {
 	public DocuDirCache(FileClass fc,
 			DigilibConfiguration dlConfig) {
 		this.fileClass = fc;
+		if (dlConfig != null) {
+		    maxDirs = dlConfig.getAsInt("dir-cache-size");
+		    missingTtl = dlConfig.getAsInt("dir-missing-ttl") * 1000L;
+		    maxMissing = dlConfig.getAsInt("dir-missing-size");
+		}
 	}
 
 	/**
@@ -104,9 +145,66 @@ public class DocuDirCache {
 			return olddir;
 		}
 		numFiles.addAndGet(newdir.size());
+		if (maxDirs > 0 && map.size() > maxDirs) {
+		    evict();
+		}
 		return newdir;
 	}
 
+	/**
+	 * Removes the least recently used directories until the cache has 90% of
+	 * maxDirs entries.
+	 * 
+	 * Alias entries are not removed. Cached directories lose the parent
+	 * link to a removed directory so it is set again on the next access.
+	 */
+	protected void evict() {
+	    if (!evicting.compareAndSet(false, true)) {
+	        // another thread is evicting
+	        return;
+	    }
+	    try {
+	        List<DocuDirectory> dirs = new ArrayList<DocuDirectory>(map.size());
+	        for (Map.Entry<String, DocuDirectory> e : map.entrySet()) {
+	            if (e.getKey().equals(e.getValue().getDirName())) {
+	                dirs.add(e.getValue());
+	            }
+	        }
+	        // oldest access first
+	        final Map<DocuDirectory, Long> atimes = new IdentityHashMap<DocuDirectory, Long>(dirs.size());
+	        for (DocuDirectory dd : dirs) {
+	            atimes.put(dd, dd.getAccessTime());
+	        }
+	        Collections.sort(dirs, new Comparator<DocuDirectory>() {
+	            public int compare(DocuDirectory a, DocuDirectory b) {
+	                return atimes.get(a).compareTo(atimes.get(b));
+	            }
+	        });
+	        int target = maxDirs - maxDirs / 10;
+	        Map<DocuDirectory, Boolean> removed = new IdentityHashMap<DocuDirectory, Boolean>();
+	        for (DocuDirectory dd : dirs) {
+	            if (map.size() <= target) {
+	                break;
+	            }
+	            if (map.remove(dd.getDirName(), dd)) {
+	                removed.put(dd, Boolean.TRUE);
+	                numFiles.addAndGet(-dd.size());
+	                evictions.incrementAndGet();
+	            }
+	        }
+	        // unlink removed parents
+	        for (DocuDirectory dd : map.values()) {
+	            Directory pd = dd.getParent();
+	            if (pd != null && removed.containsKey(pd)) {
+	                dd.setParent(null);
+	            }
+	        }
+	        logger.debug("DocuDirCache evicted " + removed.size() + " directories");
+	    } finally {
+	        evicting.set(false);
+	    }
+	}
+
 	/**
 	 * Add a directory to the cache and check its parents.
 	 * Always returns the correct Object from the cache, 
@@ -117,9 +215,20 @@ public class DocuDirCache {
 	 */
 	public DocuDirectory putDir(DocuDirectory newDir) {
 		DocuDirectory dd = put(newDir);
+		linkParent(dd);
+		return dd;
+	}
+
+	/**
+	 * Sets the parent link of the directory to the parent in the cache (if
+	 * it is not set).
+	 * 
+	 * @param dd
+	 */
+	protected void linkParent(DocuDirectory dd) {
 		if (dd.getParent() == null) {
 			// no parent link yet
-			String parent = FileOps.parent(newDir.getDirName());
+			String parent = FileOps.parent(dd.getDirName());
 			if (parent != "") {
 				// check the parent in the cache
 				DocuDirectory pd = map.get(parent);
@@ -128,12 +237,129 @@ public class DocuDirCache {
 					pd = DocuDirectoryFactory.getDocuDirectoryInstance(parent, fileClass);
 					pd = putDir(pd);
 				}
-				newDir.setParent(pd);
+				dd.setParent(pd);
+			}
+		}
+	}
+
+	/**
+	 * Returns a new DocuDirectory for the pathname <code>fn</code> that has
+	 * been read from disk or null if the directory does not exist.
+	 * 
+	 * Nonexistent directories are remembered for missingTtl ms so repeated
+	 * requests for invalid paths do not have to check the disk. A cached
+	 * parent directory is refreshed first so new directories show up.
+	 * 
+	 * @param fn
+	 * @return
+	 */
+	protected DocuDirectory getNewDirectory(String fn) {
+		if (isMissing(fn)) {
+			DocuDirectory pd = map.get(FileOps.parent(fn));
+			if (pd != null) {
+				// forgets fn if the parent has changed
+				refresh(pd);
+			}
+			if (isMissing(fn)) {
+				missingHits.incrementAndGet();
+				return null;
 			}
 		}
+		DocuDirectory dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
+		if (!dd.isValid()) {
+			putMissing(fn);
+			return null;
+		}
+		refresh(dd);
 		return dd;
 	}
 
+	/**
+	 * Refreshes the directory and forgets the nonexistent directories below
+	 * it if it was reread.
+	 * 
+	 * @param dd
+	 */
+	protected void refresh(DocuDirectory dd) {
+		long mtime = dd.getDirMTime();
+		dd.refresh();
+		if (dd.getDirMTime() != mtime) {
+			forgetMissing(dd.getDirName());
+		}
+	}
+
+	/**
+	 * Returns if the directory <code>fn</code> is known not to exist.
+	 * 
+	 * @param fn
+	 * @return
+	 */
+	protected boolean isMissing(String fn) {
+		if (missingTtl <= 0) {
+			return false;
+		}
+		Long expires = missing.get(fn);
+		if (expires == null) {
+			return false;
+		}
+		if (expires < System.currentTimeMillis()) {
+			// entry is too old
+			missing.remove(fn, expires);
+			return false;
+		}
+		return true;
+	}
+
+	/**
+	 * Remembers that the directory <code>fn</code> does not exist.
+	 * 
+	 * If there are maxMissing entries the expired entries are removed, or
+	 * all entries if none has expired.
+	 * 
+	 * @param fn
+	 */
+	protected void putMissing(String fn) {
+		if (missingTtl <= 0 || maxMissing <= 0) {
+			return;
+		}
+		long now = System.currentTimeMillis();
+		if (missing.size() >= maxMissing) {
+			for (Iterator<Long> i = missing.values().iterator(); i.hasNext();) {
+				if (i.next() < now) {
+					i.remove();
+				}
+			}
+			if (missing.size() >= maxMissing) {
+				missing.clear();
+			}
+		}
+		missing.put(fn, now + missingTtl);
+	}
+
+	/**
+	 * Forgets the nonexistent directories in and below the directory
+	 * <code>dn</code> (after the directory has changed).
+	 * 
+	 * @param dn
+	 */
+	public void forgetMissing(String dn) {
+		if (missing.isEmpty()) {
+			return;
+		}
+		if (dn == null || dn.length() == 0) {
+			// base directory
+			missing.clear();
+			return;
+		}
+		String prefix = dn + "/";
+		for (Iterator<String> i = missing.keySet().iterator(); i.hasNext();) {
+			String fn = i.next();
+			if (fn.startsWith(prefix) || fn.equals(dn)) {
+				i.remove();
+			}
+		}
+	}
+
     /**
      * Returns the DocuDirent with the pathname <code>fn</code> and the index
      * <code>in</code> of FileClass fc.
@@ -181,10 +407,9 @@ public class DocuDirCache {
 			/*
 			 * try fn as a directory
 			 */
-			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
-			if (dd.isValid()) {
+			dd = getNewDirectory(fn);
+			if (dd != null) {
 			    // add to the cache
-			    dd.refresh();
 			    dd = putDir(dd);
 			} else {
 				/*
@@ -197,11 +422,10 @@ public class DocuDirCache {
 				dd = map.get(d);
 				if (dd == null) {
 					// try to read from disk
-					dd = DocuDirectoryFactory.getDocuDirectoryInstance(d, fileClass);
-					if (dd.isValid()) {
+					dd = getNewDirectory(d);
+					if (dd != null) {
 						// add to the cache
                         // logger.debug(dd + " is valid");
-					    dd.refresh();
 						dd = putDir(dd);
 					} else {
 						// invalid path
@@ -217,8 +441,10 @@ public class DocuDirCache {
 		} else {
 			// cache hit
 			hits.incrementAndGet();
+			// the parent may have been evicted
+			linkParent(dd);
 		}
-		dd.refresh();
+		refresh(dd);
 		if (dd.isValid()) {
 			try {
 				return dd.get(n);
@@ -246,10 +472,9 @@ public class DocuDirCache {
 			// cache miss
 			misses.incrementAndGet();
 			// see if it's a directory
-			dd = DocuDirectoryFactory.getDocuDirectoryInstance(fn, fileClass);
-			if (dd.isValid()) {
+			dd = getNewDirectory(fn);
+			if (dd != null) {
 			    // add to the cache
-                dd.refresh();
 			    dd = putDir(dd);
 			} else {
 				// try the parent directory in the cache
@@ -257,10 +482,9 @@ public class DocuDirCache {
                 dd = map.get(pn);
 				if (dd == null) {
 					// try to read from disk
-					dd = DocuDirectoryFactory.getDocuDirectoryInstance(pn, fileClass);
-					if (dd.isValid()) {
+					dd = getNewDirectory(pn);
+					if (dd != null) {
 						// add to the cache
-		                dd.refresh();
 						dd = putDir(dd);
 					} else {
 						// invalid path
@@ -274,8 +498,10 @@ public class DocuDirCache {
 		} else {
 			// cache hit
 			hits.incrementAndGet();
+			// the parent may have been evicted
+			linkParent(dd);
 		}
-		dd.refresh();
+		refresh(dd);
 		if (dd.isValid()) {
 			return dd;
 		}
@@ -303,6 +529,103 @@ public class DocuDirCache {
 		return misses.get();
 	}
 
+	/**
+	 * Starts checking all cached directories for changes on disk in the
+	 * background every <code>interval</code> ms.
+	 * 
+	 * Changed directories are reread in the background so requests can use
+	 * DocuDirectory.setCheckInterval() to skip the check.
+	 * 
+	 * @param interval
+	 */
+	public synchronized void startChecker(final long interval) {
+	    if (checker != null || interval <= 0) {
+	        return;
+	    }
+	    checker = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+	        public Thread newThread(Runnable r) {
+	            Thread t = new Thread(r, "digilib-dircheck");
+	            t.setDaemon(true);
+	            return t;
+	        }
+	    });
+	    checker.scheduleWithFixedDelay(new Runnable() {
+	        public void run() {
+	            checkDirs(interval);
+	        }
+	    }, interval, interval, TimeUnit.MILLISECONDS);
+	    logger.info("DocuDirCache checking directories every " + interval + "ms");
+	}
+
+	/**
+	 * Checks all cached directories that were not checked in the last
+	 * <code>interval</code> ms for changes on disk.
+	 * 
+	 * @param interval
+	 */
+	protected void checkDirs(long interval) {
+	    long start = System.currentTimeMillis();
+	    int n = 0;
+	    for (DocuDirectory dd : map.values()) {
+	        if (!dd.isValid() || !dd.isRead() || start - dd.getCheckTime() < interval) {
+	            // not read yet or checked recently
+	            continue;
+	        }
+	        try {
+	            long mtime = dd.getDirMTime();
+	            dd.checkModified();
+	            if (dd.getDirMTime() != mtime) {
+	                forgetMissing(dd.getDirName());
+	            }
+	            ++n;
+	        } catch (Exception e) {
+	            logger.error("Error checking directory " + dd.getDirName() + ": " + e);
+	        }
+	        if (Thread.currentThread().isInterrupted()) {
+	            return;
+	        }
+	    }
+	    logger.debug("DocuDirCache checked " + n + " directories in " + (System.currentTimeMillis() - start) + "ms");
+	}
+
+	/**
+	 * Stops the background checking.
+	 */
+	public synchronized void shutdown() {
+	    if (checker != null) {
+	        checker.shutdownNow();
+	        checker = null;
+	    }
+	}
+
+	/**
+	 * @return the number of evicted directories
+	 */
+	public int getEvictions() {
+		return evictions.get();
+	}
+
+	/**
+	 * @return the number of lookups answered by the nonexistent directories
+	 */
+	public int getMissingHits() {
+		return missingHits.get();
+	}
+
+	/**
+	 * @return the number of remembered nonexistent directories
+	 */
+	public int getMissingSize() {
+		return missing.size();
+	}
+
+	/**
+	 * @return the maximum number of directories (0 means no limit)
+	 */
+	public int getMaxDirs() {
+		return maxDirs;
+	}
+
 	/**
 	 * @return
 	 */
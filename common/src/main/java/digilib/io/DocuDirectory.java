@@ -31,6 +31,13 @@ import java.io.File;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.List;
+import java.util.ListIterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import digilib.conf.DigilibConfiguration;
 import digilib.io.FileOps.FileClass;
@@ -52,8 +59,8 @@ public abstract class DocuDirectory extends Directory {
     /** type of files in this DocuDirectory */
     protected FileClass fileClass = FileClass.IMAGE;
     
-	/** list of files (DocuDirent) */
-	protected List<DocuDirent> files = null;
+	/** list of files (DocuDirent) (replaced, not changed, when the directory is reread) */
+	protected volatile List<DocuDirent> files = null;
 
 	/** directory object is valid (exists on disk) */
 	protected boolean isValid = false;
@@ -68,7 +75,22 @@ public abstract class DocuDirectory extends Directory {
 	protected long objectATime = 0;
 
 	/** time directory was last modified on the file system */
-	protected long dirMTime = 0;
+	protected volatile long dirMTime = 0;
+
+	/** time the modification time on the file system was last checked */
+	protected volatile long checkTime = 0;
+
+	/** minimum time between checks of the modification time in ms (0 means every refresh) */
+	protected static long checkInterval = 0;
+
+	/** executor for identifying the files of new directories (null if not used) */
+	protected static ThreadPoolExecutor identifyExecutor = null;
+
+	/** number of threads of the identifyExecutor */
+	protected static int identifyThreads = 0;
+
+	/** maximum number of waiting identify jobs */
+	protected static int identifyQueueSize = 10000;
 
 	/**
 	 * Configure object with digilib directory path and a parent DocuDirCache.
@@ -123,10 +145,11 @@ public abstract class DocuDirectory extends Directory {
 	 * @return
 	 */
 	public DocuDirent get(int index) {
-		if ((files == null) || (index >= files.size())) {
+		List<DocuDirent> fileList = files;
+		if ((fileList == null) || (index >= fileList.size())) {
 			return null;
 		}
-		return files.get(index);
+		return fileList.get(index);
 	}
 
 	/**
@@ -153,6 +176,98 @@ public abstract class DocuDirectory extends Directory {
 	public abstract boolean readDir();
 
 
+	/**
+	 * Identifies the image files in the list in the background (if the
+	 * identifyExecutor is set).
+	 * 
+	 * Files are identified in list order. Requests for a file that is not
+	 * identified yet identify it themselves. If the queue is full the
+	 * remaining files are identified on demand.
+	 * 
+	 * @param fileList
+	 */
+	protected void identifyFiles(List<DocuDirent> fileList) {
+		ThreadPoolExecutor executor = identifyExecutor;
+		if (executor == null || fileClass != FileClass.IMAGE) {
+			return;
+		}
+		for (DocuDirent df : fileList) {
+			if (!(df instanceof ImageSet)) {
+				continue;
+			}
+			final ImageSet imgSet = (ImageSet) df;
+			try {
+				executor.execute(new Runnable() {
+					public void run() {
+						// identify all resolutions
+						for (ListIterator<ImageInput> i = imgSet.getHiresIterator(); i.hasNext();) {
+							i.next().getSize();
+						}
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				logger.debug("identify queue full: identifying remaining files of " + dirName + " on demand");
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Sets the number of threads for identifying the image files of new
+	 * directories in the background (0 means off).
+	 * 
+	 * @param threads
+	 */
+	public static synchronized void setIdentifyThreads(int threads) {
+		if (identifyExecutor != null) {
+			identifyExecutor.shutdownNow();
+			identifyExecutor = null;
+		}
+		identifyThreads = threads;
+		if (threads > 0) {
+			identifyExecutor = new ThreadPoolExecutor(threads, threads, 0L, TimeUnit.MILLISECONDS,
+					new ArrayBlockingQueue<Runnable>(identifyQueueSize), new ThreadFactory() {
+						private AtomicInteger count = new AtomicInteger(0);
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, "digilib-identify-" + count.incrementAndGet());
+							t.setDaemon(true);
+							return t;
+						}
+					});
+		}
+	}
+
+	/**
+	 * @return the number of threads for identifying image files
+	 */
+	public static int getIdentifyThreads() {
+		return identifyThreads;
+	}
+
+	/**
+	 * Sets the minimum time between checks of the modification time of
+	 * directories in refresh() (0 means every refresh).
+	 * 
+	 * @param millis
+	 */
+	public static void setCheckInterval(long millis) {
+		checkInterval = millis;
+	}
+
+	/**
+	 * @return the minimum time between checks of the modification time in ms
+	 */
+	public static long getCheckInterval() {
+		return checkInterval;
+	}
+
+	/**
+	 * @return the time the modification time was last checked
+	 */
+	public long getCheckTime() {
+		return checkTime;
+	}
+
 	/**
 	 * Check to see if the directory has been modified and reread if necessary.
 	 * 
@@ -160,15 +275,26 @@ public abstract class DocuDirectory extends Directory {
 	 */
     public boolean refresh() {
         if (isValid) {
-            if (dir.lastModified() > dirMTime) {
-                // on-disk modification time is more recent
-                readDir();
+            if (System.currentTimeMillis() - checkTime >= checkInterval) {
+                checkModified();
             }
             touch();
         }
         return isValid;
     }
 
+    /**
+     * Check the modification time of the directory on disk and reread if
+     * necessary. Does not change the access time.
+     */
+    public void checkModified() {
+        checkTime = System.currentTimeMillis();
+        if (dir.lastModified() > dirMTime) {
+            // on-disk modification time is more recent
+            readDir();
+        }
+    }
+
 
 	/**
 	 * Read directory metadata.
@@ -237,7 +363,17 @@ public abstract class DocuDirectory extends Directory {
 				return -1;
 			}
 		}
-		List<DocuDirent> fileList = files;
+		return indexOf(files, fn);
+	}
+
+	/**
+	 * Searches for the file with the name <code>fn</code> in the list.
+	 * 
+	 * @param fileList
+	 * @param fn
+	 * @return
+	 */
+	protected int indexOf(List<DocuDirent> fileList, String fn) {
 		// empty directory?
 		if (fileList == null) {
 			return -1;
@@ -281,9 +417,17 @@ public abstract class DocuDirectory extends Directory {
 	 * @return DocuDirent
 	 */
 	public DocuDirent find(String fn) {
-		int i = indexOf(fn);
+		if (!isRead()) {
+			// read directory now
+			if (!readDir()) {
+				return null;
+			}
+		}
+		// use the same list for search and get
+		List<DocuDirent> fileList = files;
+		int i = indexOf(fileList, fn);
 		if (i >= 0) {
-			return files.get(i);
+			return fileList.get(i);
 		}
 		return null;
 	}
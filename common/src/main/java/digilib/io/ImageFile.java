@@ -34,6 +34,8 @@ import java.io.RandomAccessFile;
 import javax.imageio.stream.FileImageInputStream;
 import javax.imageio.stream.ImageInputStream;
 
+import org.apache.log4j.Logger;
+
 import digilib.image.DocuImage;
 import digilib.image.DocuImageFactory;
 import digilib.util.ImageSize;
@@ -42,6 +44,12 @@ import digilib.util.ImageSize;
  * @author casties
  */
 public class ImageFile extends ImageInput {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageFile.class);
+
+    /** read image files through memory-mapped streams */
+    protected static boolean mappedInput = false;
 	
 	// file
 	private File file = null;
@@ -49,6 +57,8 @@ public class ImageFile extends ImageInput {
 	private String name = null;
 	// parent directory
 	private Directory dir = null;
+	// index of the image in the file
+	private int imageIndex = 0;
 
 	/** Constructor with File.
 	 * 
@@ -76,11 +86,28 @@ public class ImageFile extends ImageInput {
 	}
 	
 	
+	/** Constructor for another image (e.g. a resolution level) in the same file.
+	 * 
+	 * @param f
+	 * @param imageIndex
+	 */
+	public ImageFile(ImageFile f, int imageIndex) {
+		this.file = f.file;
+		this.name = f.name;
+		this.dir = f.dir;
+		this.imageIndex = imageIndex;
+	}
+	
 	/** Checks the image and sets size and type.
 	 * 
 	 */
 	public void check() {
 	    if (pixelSize == null) {
+	        // try the persistent header index first
+	        ImageHeaderIndex index = (dir != null) ? dir.getHeaderIndex() : null;
+	        if (index != null && index.restore(this)) {
+	            return;
+	        }
 	        try {
 	            // use the configured toolkit to identify the image
                 DocuImage di = DocuImageFactory.getInstance();
@@ -88,6 +115,9 @@ public class ImageFile extends ImageInput {
             } catch (IOException e) {
                 // nothing much to do...
             }
+	        if (index != null && pixelSize != null) {
+	            index.store(this);
+	        }
 	    }
 	}
 	
@@ -128,6 +158,14 @@ public class ImageFile extends ImageInput {
 
 	
 	/* (non-Javadoc)
+     * @see digilib.io.ImageInput#getImageIndex()
+     */
+    @Override
+    public int getImageIndex() {
+        return imageIndex;
+    }
+
+    /* (non-Javadoc)
      * @see digilib.io.ImageInput#hasImageInputStream()
      */
     @Override
@@ -141,14 +179,50 @@ public class ImageFile extends ImageInput {
     @Override
     public ImageInputStream getImageInputStream() {
         try {
-            RandomAccessFile rf = new RandomAccessFile(file, "r");
-            return new FileImageInputStream(rf);
+            return openImageInputStream(file);
         } catch (IOException e) {
             // what now?
         }
         return null;
     }
 
+    /**
+     * Returns a new ImageInputStream for the file (memory-mapped if
+     * mappedInput is set). The stream should be closed by the caller.
+     * 
+     * @param file
+     * @return
+     * @throws IOException
+     */
+    public static ImageInputStream openImageInputStream(File file) throws IOException {
+        if (mappedInput) {
+            try {
+                return new MappedFileImageInputStream(file);
+            } catch (IOException e) {
+                // e.g. out of address space
+                logger.warn("Unable to map " + file + ": " + e.getMessage());
+            }
+        }
+        RandomAccessFile rf = new RandomAccessFile(file, "r");
+        return new FileImageInputStream(rf);
+    }
+
+    /**
+     * Sets if image files are read through memory-mapped streams.
+     * 
+     * @param mapped
+     */
+    public static void setMappedInput(boolean mapped) {
+        mappedInput = mapped;
+    }
+
+    /**
+     * @return if image files are read through memory-mapped streams
+     */
+    public static boolean isMappedInput() {
+        return mappedInput;
+    }
+
     /* (non-Javadoc)
      * @see digilib.io.ImageInput#hasFile()
      */
@@ -182,6 +256,9 @@ public class ImageFile extends ImageInput {
     public String toString() {
         // try to use File.toString
         if (file != null) {
+            if (imageIndex > 0) {
+                return file.toString() + "[" + imageIndex + "]";
+            }
             return file.toString();
         }
         return super.toString();
@@ -25,7 +25,6 @@ package digilib.io;
 
 import java.io.File;
 import java.util.ArrayList;
-import java.util.Arrays;
 
 import digilib.io.FileOps.FileClass;
 import digilib.meta.FileMeta;
@@ -68,6 +67,32 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
         fill(scaleDirs, file);
     }
 
+    /**
+     * Constructor with a File, Directories and the names of the files in the
+     * scaled Directories (null if there is no file in a Directory).
+     * 
+     * Does not read the scaled Directories.
+     * 
+     * @param file
+     * @param scaleDirs
+     * @param scaledNames
+     */
+    public ImageFileSet(File file, Directory[] scaleDirs, String[] scaledNames) {
+        int nb = scaleDirs.length;
+        list = new ArrayList<ImageInput>(nb);
+        // first dir is our parent
+        parentDir = scaleDirs[0];
+        this.file = file;
+        name = file.getName();
+        meta = MetaFactory.getFileMetaInstance();
+        add(new ImageFile(file, this, parentDir));
+        for (int i = 1; i < nb; ++i) {
+            if (scaleDirs[i] != null && scaledNames[i] != null) {
+                add(new ImageFile(scaledNames[i], this, scaleDirs[i]));
+            }
+        }
+    }
+
     /* (non-Javadoc)
      * @see digilib.io.DocuDirent#getName()
      */
@@ -127,7 +152,6 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
      */
     void fill(Directory[] dirs, File fl) {
     	String fn = fl.getName();
-    	String baseFn = FileOps.basename(fn);
     	// add the first ImageFile to the ImageSet
     	add(new ImageFile(fl, this, parentDir));
     	// iterate the remaining base directories
@@ -136,43 +160,41 @@ public class ImageFileSet extends ImageSet implements DocuDirent {
     		if (dir == null) {
     			continue;
     		}
-    		// read the directory
-    		if (dir.getFilenames() == null) {
-    			dir.readDir();
-    		}
-    		String[] dirFiles = dir.getFilenames();
-    		// try the same filename as the original
-    		int fileIdx = Arrays.binarySearch(dirFiles, fn);
-    		if (fileIdx < 0) {
-    			// try closest matches without extension
-    			fileIdx = -fileIdx - 1;
-    			// try idx
-    			if ((fileIdx < dirFiles.length)
-    					&& (FileOps.basename(dirFiles[fileIdx]).equals(baseFn))) {
-    				// idx ok
-    			} else if ((fileIdx > 0)
-    					&& (FileOps.basename(dirFiles[fileIdx - 1])
-    							.equals(baseFn))) {
-    				// idx-1 ok
-    				fileIdx = fileIdx - 1;
-    			} else if ((fileIdx+1 < dirFiles.length)
-    					&& (FileOps.basename(dirFiles[fileIdx + 1])
-    							.equals(baseFn))) {
-    				// idx+1 ok
-    				fileIdx = fileIdx + 1;
-    			} else {
-    				// basename doesn't match
-    				continue;
-    			}
-    		}
-    		if (FileOps.classForFilename(dirFiles[fileIdx]) == fileClass) {
-    			/* logger.debug("adding file " + dirFiles[fileIdx]
+    		String sfn = findFilename(dir, fn);
+    		if (sfn != null) {
+    			/* logger.debug("adding file " + sfn
     					+ " to Fileset " + this.getName()); */
-    			add(new ImageFile(dirFiles[fileIdx], this, dir));
+    			add(new ImageFile(sfn, this, dir));
     		}
     	}
     }
 
+    /**
+     * Returns the name of the image file for the file name <code>fn</code> in
+     * the Directory <code>dir</code> (with the same name or the same name
+     * without extension). Returns null if there is no such file.
+     * 
+     * @param dir
+     * @param fn
+     * @return
+     */
+    static String findFilename(Directory dir, String fn) {
+    	// read the directory
+    	if (dir.getFilenames() == null) {
+    		dir.readDir();
+    	}
+    	String[] dirFiles = dir.getFilenames();
+    	// try the same filename as the original or without extension
+    	int fileIdx = dir.indexOfFilename(fn);
+    	if (fileIdx < 0) {
+    		return null;
+    	}
+    	if (FileOps.classForFilename(dirFiles[fileIdx]) == fileClass) {
+    		return dirFiles[fileIdx];
+    	}
+    	return null;
+    }
+
     /**
      * Checks metadata and sets resolution in resX and resY.
      *  
@@ -0,0 +1,402 @@
+package digilib.io;
+
+/*
+ * #%L
+ * ImageHeaderIndex -- persistent index of the image headers of a directory.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.ListIterator;
+import java.util.Map;
+
+import org.apache.log4j.Logger;
+
+import digilib.image.ImageDiskCache;
+import digilib.util.ImageSize;
+
+/**
+ * Persistent index of the size and mime-type of the image files in a
+ * directory.
+ * 
+ * Saves identifying the image files (reading the headers) after a restart.
+ * The index of a directory is a binary file in the index directory. It is
+ * loaded when it is first used. Entries are valid as long as the modification
+ * time and length of the image file are unchanged. New entries are appended to
+ * the file, the file is compacted when it has too many outdated records.
+ * 
+ * The sizes of additional resolution levels in pyramidal TIFF files are
+ * stored with the file.
+ * 
+ * @author casties
+ * 
+ */
+public class ImageHeaderIndex {
+
+    /** general logger for this class */
+    protected static Logger logger = Logger.getLogger(ImageHeaderIndex.class);
+
+    /** file format magic number ("DLHI") */
+    protected static final int MAGIC = 0x444c4849;
+
+    /** file format version */
+    protected static final int VERSION = 1;
+
+    /** directory for the index files (null means no index) */
+    protected static File indexDir = null;
+
+    /** the image directory */
+    protected File dir;
+
+    /** the index file */
+    protected File indexFile;
+
+    /** entries by file name (null if not loaded) */
+    protected Map<String, Entry> entries = null;
+
+    /** number of records in the index file */
+    protected int numRecords = 0;
+
+    /** the index file has to be rewritten */
+    protected boolean rewrite = false;
+
+    /** index entry of an image file */
+    protected static class Entry {
+        String name;
+        long mtime;
+        long length;
+        String mimetype;
+        /** widths of the image and the resolution levels */
+        int[] widths;
+        /** heights of the image and the resolution levels */
+        int[] heights;
+    }
+
+    /**
+     * Create an ImageHeaderIndex for the image directory <code>dir</code>.
+     * 
+     * @param dir
+     * @param indexDir
+     *            directory for the index file
+     */
+    public ImageHeaderIndex(File dir, File indexDir) {
+        this.dir = dir;
+        this.indexFile = new File(indexDir, ImageDiskCache.hashKey(dir.getAbsolutePath()) + ".idx");
+    }
+
+    /**
+     * Sets the size and mime-type of the ImageFile from the index. Adds the
+     * resolution levels of the file to the ImageSet of the ImageFile.
+     * 
+     * Returns false if there is no valid entry for the file.
+     * 
+     * @param imgFile
+     * @return
+     */
+    public boolean restore(ImageFile imgFile) {
+        if (imgFile.getImageIndex() != 0) {
+            return false;
+        }
+        Entry e;
+        synchronized (this) {
+            load();
+            e = entries.get(imgFile.getName());
+        }
+        if (e == null) {
+            return false;
+        }
+        File f = imgFile.getFile();
+        if (f.lastModified() != e.mtime || f.length() != e.length) {
+            // outdated
+            return false;
+        }
+        imgFile.setMimetype(e.mimetype);
+        if (e.widths.length > 1) {
+            restoreLevels(imgFile, e);
+        }
+        // size last: the ImageFile counts as checked
+        imgFile.setSize(new ImageSize(e.widths[0], e.heights[0]));
+        return true;
+    }
+
+    /**
+     * Adds the resolution levels in the entry to the ImageSet of the
+     * ImageFile.
+     * 
+     * @param imgFile
+     * @param e
+     */
+    protected void restoreLevels(ImageFile imgFile, Entry e) {
+        ImageSet imgSet = imgFile.getParent();
+        if (imgSet == null) {
+            return;
+        }
+        synchronized (imgSet) {
+            // levels already added?
+            for (ListIterator<ImageInput> i = imgSet.getHiresIterator(); i.hasNext();) {
+                ImageInput ii = i.next();
+                if (ii.getImageIndex() > 0 && imgFile.getFile().equals(ii.getFile())) {
+                    return;
+                }
+            }
+            List<ImageInput> levels = new ArrayList<ImageInput>(e.widths.length - 1);
+            for (int i = 1; i < e.widths.length; ++i) {
+                ImageFile level = new ImageFile(imgFile, i);
+                level.setMimetype(e.mimetype);
+                level.setSize(new ImageSize(e.widths[i], e.heights[i]));
+                levels.add(level);
+            }
+            imgSet.insertAfter(imgFile, levels);
+        }
+    }
+
+    /**
+     * Adds the size and mime-type of the identified ImageFile and its
+     * resolution levels to the index.
+     * 
+     * @param imgFile
+     */
+    public void store(ImageFile imgFile) {
+        ImageSize size = imgFile.getSize();
+        if (imgFile.getImageIndex() != 0 || size == null || imgFile.getMimetype() == null) {
+            return;
+        }
+        File f = imgFile.getFile();
+        Entry e = new Entry();
+        e.name = imgFile.getName();
+        e.mtime = f.lastModified();
+        e.length = f.length();
+        e.mimetype = imgFile.getMimetype();
+        // collect resolution levels
+        List<ImageSize> sizes = new ArrayList<ImageSize>();
+        sizes.add(size);
+        ImageSet imgSet = imgFile.getParent();
+        if (imgSet != null) {
+            for (ListIterator<ImageInput> i = imgSet.getHiresIterator(); i.hasNext();) {
+                ImageInput ii = i.next();
+                if (ii.getImageIndex() == sizes.size() && f.equals(ii.getFile()) && ii.getSize() != null) {
+                    sizes.add(ii.getSize());
+                }
+            }
+        }
+        e.widths = new int[sizes.size()];
+        e.heights = new int[sizes.size()];
+        for (int i = 0; i < e.widths.length; ++i) {
+            e.widths[i] = sizes.get(i).getWidth();
+            e.heights[i] = sizes.get(i).getHeight();
+        }
+        synchronized (this) {
+            load();
+            entries.put(e.name, e);
+            try {
+                if (rewrite || numRecords > 2 * entries.size() + 16) {
+                    writeIndex();
+                } else {
+                    appendRecord(e);
+                }
+            } catch (IOException ex) {
+                logger.warn("Unable to write image header index " + indexFile + ": " + ex);
+            }
+        }
+    }
+
+    /**
+     * Reads the index file (if it is not loaded).
+     */
+    protected void load() {
+        if (entries != null) {
+            return;
+        }
+        entries = new HashMap<String, Entry>();
+        if (!indexFile.exists()) {
+            return;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)));
+            if (in.readInt() != MAGIC || in.readInt() != VERSION
+                    || !in.readUTF().equals(dir.getAbsolutePath())) {
+                logger.warn("Invalid image header index " + indexFile);
+                rewrite = true;
+                return;
+            }
+            try {
+                while (true) {
+                    // end of file between records?
+                    in.mark(1);
+                    if (in.read() < 0) {
+                        break;
+                    }
+                    in.reset();
+                    Entry e = readRecord(in);
+                    // later records replace earlier records
+                    entries.put(e.name, e);
+                    ++numRecords;
+                }
+            } catch (EOFException e) {
+                // incomplete last record: don't append to it
+                logger.warn("Incomplete last record in image header index " + indexFile);
+                rewrite = true;
+            }
+            logger.debug("loaded image header index of " + dir + ": " + entries.size() + " files");
+        } catch (IOException e) {
+            logger.warn("Unable to read image header index " + indexFile + ": " + e);
+            rewrite = true;
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // nothing to do
+                }
+            }
+        }
+    }
+
+    /**
+     * Writes all current entries of existing files to a new index file.
+     * 
+     * @throws IOException
+     */
+    protected void writeIndex() throws IOException {
+        // drop entries of deleted files
+        for (Iterator<Entry> i = entries.values().iterator(); i.hasNext();) {
+            if (!new File(dir, i.next().name).exists()) {
+                i.remove();
+            }
+        }
+        File parent = indexFile.getParentFile();
+        if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+            throw new IOException("Unable to create directory " + parent);
+        }
+        File temp = new File(parent, indexFile.getName() + ".part");
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp)));
+        try {
+            writeHeader(out);
+            for (Entry e : entries.values()) {
+                writeRecord(out, e);
+            }
+        } finally {
+            out.close();
+        }
+        // renameTo does not replace on all platforms
+        indexFile.delete();
+        if (!temp.renameTo(indexFile)) {
+            temp.delete();
+            throw new IOException("Unable to rename " + temp);
+        }
+        numRecords = entries.size();
+        rewrite = false;
+    }
+
+    /**
+     * Appends the entry to the index file.
+     * 
+     * @param e
+     * @throws IOException
+     */
+    protected void appendRecord(Entry e) throws IOException {
+        if (!indexFile.exists()) {
+            writeIndex();
+            return;
+        }
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+        try {
+            writeRecord(out, e);
+        } finally {
+            out.close();
+        }
+        ++numRecords;
+    }
+
+    protected void writeHeader(DataOutputStream out) throws IOException {
+        out.writeInt(MAGIC);
+        out.writeInt(VERSION);
+        out.writeUTF(dir.getAbsolutePath());
+    }
+
+    protected static void writeRecord(DataOutputStream out, Entry e) throws IOException {
+        out.writeUTF(e.name);
+        out.writeLong(e.mtime);
+        out.writeLong(e.length);
+        out.writeUTF(e.mimetype);
+        out.writeShort(e.widths.length);
+        for (int i = 0; i < e.widths.length; ++i) {
+            out.writeInt(e.widths[i]);
+            out.writeInt(e.heights[i]);
+        }
+    }
+
+    protected static Entry readRecord(DataInputStream in) throws IOException {
+        Entry e = new Entry();
+        e.name = in.readUTF();
+        e.mtime = in.readLong();
+        e.length = in.readLong();
+        e.mimetype = in.readUTF();
+        int n = in.readUnsignedShort();
+        if (n < 1) {
+            throw new IOException("Invalid record for " + e.name);
+        }
+        e.widths = new int[n];
+        e.heights = new int[n];
+        for (int i = 0; i < n; ++i) {
+            e.widths[i] = in.readInt();
+            e.heights[i] = in.readInt();
+        }
+        return e;
+    }
+
+    /**
+     * Sets the directory for the index files of all directories (null means
+     * no index).
+     * 
+     * @param dir
+     */
+    public static void setIndexDir(File dir) {
+        indexDir = dir;
+    }
+
+    /**
+     * @return the directory for the index files (may be null)
+     */
+    public static File getIndexDir() {
+        return indexDir;
+    }
+
+    /**
+     * @return the number of entries (if loaded)
+     */
+    public synchronized int size() {
+        return (entries != null) ? entries.size() : 0;
+    }
+
+}
@@ -37,9 +37,9 @@ import digilib.util.ImageSize;
 public abstract class ImageInput {
 
 	// mime file type
-	protected String mimetype = null;
-	// image size in pixels
-	protected ImageSize pixelSize = null;
+	protected volatile String mimetype = null;
+	// image size in pixels (set last by identify)
+	protected volatile ImageSize pixelSize = null;
     protected ImageSet parent = null;
 
 	/**
@@ -112,6 +112,14 @@ public abstract class ImageInput {
         this.parent = parent;
     }
 
+    /** Returns the index of the image in the input (for inputs with multiple images).
+     * 
+     * @return
+     */
+    public int getImageIndex() {
+        return 0;
+    }
+
     /** Returns if the input can be returned as ImageInputStream.
 	 * 
 	 * @return
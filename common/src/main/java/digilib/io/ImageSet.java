@@ -40,7 +40,7 @@ import digilib.util.ImageSize;
 public class ImageSet {
 
 	/** list of files (ImageFile) */
-	protected List<ImageInput> list = null;
+	protected volatile List<ImageInput> list = null;
 
 	/** aspect ratio (width/height) */
 	protected float aspect = 0f;
@@ -236,6 +236,98 @@ public class ImageSet {
     }
     
     
+    /**
+     * Inserts ImageInputs after the ImageInput <code>after</code>, each before
+     * the first smaller ImageInput.
+     * 
+     * Used for additional resolutions in the same file (ordered from big to
+     * small). The list is replaced by a new list so running iterators are not
+     * affected.
+     * 
+     * @param after
+     * @param inputs
+     */
+    public synchronized void insertAfter(ImageInput after, List<ImageInput> inputs) {
+        // identify the other images first (may add resolution levels)
+        for (ImageInput ii : list) {
+            if (!isSameFile(ii, after)) {
+                ii.getSize();
+            }
+        }
+        List<ImageInput> nl = new ArrayList<ImageInput>(list.size() + inputs.size());
+        nl.addAll(list);
+        int start = nl.indexOf(after);
+        if (start < 0) {
+            return;
+        }
+        for (ImageInput ii : nl) {
+            if (ii != after && ii.getImageIndex() > 0 && isSameFile(ii, after)) {
+                // levels already added
+                return;
+            }
+        }
+        for (ImageInput input : inputs) {
+            ImageSize is = input.getSize();
+            int idx = start + 1;
+            while (is != null && idx < nl.size()) {
+                ImageSize s = nl.get(idx).getSize();
+                if (s != null && s.isTotallySmallerThan(is)) {
+                    break;
+                }
+                ++idx;
+            }
+            input.setParent(this);
+            nl.add(idx, input);
+            // the next level is smaller
+            start = idx;
+        }
+        list = nl;
+    }
+
+    /**
+     * Returns if both ImageInputs are read from the same file.
+     * 
+     * @param a
+     * @param b
+     * @return
+     */
+    protected static boolean isSameFile(ImageInput a, ImageInput b) {
+        return (a == b || (a.getFile() != null && a.getFile().equals(b.getFile())));
+    }
+
+    /**
+     * Inserts an ImageInput before the first smaller ImageInput.
+     * 
+     * The list is replaced by a new list so running iterators are not
+     * affected.
+     * 
+     * @param input
+     */
+    public synchronized void insertBySize(ImageInput input) {
+        ImageSize is = input.getSize();
+        if (is == null) {
+            return;
+        }
+        // identify all images first (may add resolution levels)
+        for (ImageInput ii : list) {
+            ii.getSize();
+        }
+        List<ImageInput> nl = new ArrayList<ImageInput>(list.size() + 1);
+        nl.addAll(list);
+        // the first ImageInput stays first
+        int idx = Math.min(1, nl.size());
+        while (idx < nl.size()) {
+            ImageSize s = nl.get(idx).getSize();
+            if (s != null && s.isTotallySmallerThan(is)) {
+                break;
+            }
+            ++idx;
+        }
+        input.setParent(this);
+        nl.add(idx, input);
+        list = nl;
+    }
+
     /**
      * Append all ImageInputs from another ImageSet (at the end).
      * 
@@ -0,0 +1,145 @@
+package digilib.io;
+
+/*
+ * #%L
+ * MappedFileImageInputStream -- ImageInputStream on a memory-mapped file.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+import javax.imageio.stream.ImageInputStreamImpl;
+
+/**
+ * ImageInputStream that reads a file through memory-mapped buffers.
+ * 
+ * Reads and seeks are memory accesses that are served from the page cache of
+ * the operating system instead of read system calls. This helps random access
+ * on big (tiled or uncompressed) TIFF files. Files are mapped in chunks of at
+ * most 1GB.
+ * 
+ * The mapping is released by the garbage collector after the stream is
+ * closed.
+ * 
+ * @author casties
+ * 
+ */
+public class MappedFileImageInputStream extends ImageInputStreamImpl {
+
+    /** size of the mapped chunks (power of 2) */
+    protected static final int CHUNK_BITS = 30;
+
+    protected static final long CHUNK_SIZE = 1L << CHUNK_BITS;
+
+    /** mapped chunks of the file */
+    protected MappedByteBuffer[] chunks;
+
+    /** length of the file */
+    protected long length;
+
+    /**
+     * Create a MappedFileImageInputStream for the file.
+     * 
+     * @param file
+     * @throws IOException
+     */
+    public MappedFileImageInputStream(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            length = channel.size();
+            int n = (int) ((length + CHUNK_SIZE - 1) >> CHUNK_BITS);
+            chunks = new MappedByteBuffer[n];
+            for (int i = 0; i < n; ++i) {
+                long start = (long) i << CHUNK_BITS;
+                chunks[i] = channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(CHUNK_SIZE, length - start));
+            }
+        } finally {
+            // the mapping stays valid
+            raf.close();
+        }
+    }
+
+    @Override
+    public int read() throws IOException {
+        checkClosed();
+        bitOffset = 0;
+        if (streamPos >= length) {
+            return -1;
+        }
+        MappedByteBuffer chunk = chunks[(int) (streamPos >> CHUNK_BITS)];
+        int b = chunk.get((int) (streamPos & (CHUNK_SIZE - 1))) & 0xff;
+        ++streamPos;
+        return b;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        checkClosed();
+        if (off < 0 || len < 0 || off + len > b.length) {
+            throw new IndexOutOfBoundsException();
+        }
+        bitOffset = 0;
+        if (len == 0) {
+            return 0;
+        }
+        if (streamPos >= length) {
+            return -1;
+        }
+        int read = 0;
+        while (read < len && streamPos < length) {
+            MappedByteBuffer chunk = chunks[(int) (streamPos >> CHUNK_BITS)];
+            int pos = (int) (streamPos & (CHUNK_SIZE - 1));
+            int n = Math.min(len - read, chunk.capacity() - pos);
+            // position is private to this stream
+            chunk.position(pos);
+            chunk.get(b, off + read, n);
+            read += n;
+            streamPos += n;
+        }
+        return read;
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        checkClosed();
+        if (pos < flushedPos) {
+            throw new IndexOutOfBoundsException("pos < flushedPos!");
+        }
+        bitOffset = 0;
+        streamPos = pos;
+    }
+
+    @Override
+    public long length() {
+        return length;
+    }
+
+    @Override
+    public void close() throws IOException {
+        super.close();
+        chunks = null;
+    }
+
+}
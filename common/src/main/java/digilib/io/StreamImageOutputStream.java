@@ -0,0 +1,100 @@
+package digilib.io;
+
+/*
+ * #%L
+ * StreamImageOutputStream -- ImageOutputStream writing directly to an OutputStream.
+ * %%
+ * Copyright (C) 2014 MPIWG Berlin
+ * %%
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU Lesser General Public License as 
+ * published by the Free Software Foundation, either version 3 of the 
+ * License, or (at your option) any later version.
+ * 
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Lesser Public License for more details.
+ * 
+ * You should have received a copy of the GNU General Lesser Public 
+ * License along with this program.  If not, see
+ * <http://www.gnu.org/licenses/lgpl-3.0.html>.
+ * #L%
+ * Author: Robert Casties (robcast@berlios.de)
+ */
+
+import java.io.IOException;
+import java.io.OutputStream;
+
+import javax.imageio.stream.ImageOutputStreamImpl;
+
+/**
+ * ImageOutputStream that writes directly to an OutputStream without caching.
+ * 
+ * The stream can not be read and can only be seeked to the current position.
+ * It can be used with ImageWriters that write sequentially like the JPEG
+ * writer. The OutputStream is not closed by close().
+ * 
+ * @author casties
+ * 
+ */
+public class StreamImageOutputStream extends ImageOutputStreamImpl {
+
+    protected OutputStream stream;
+
+    /**
+     * Create a StreamImageOutputStream writing to <code>stream</code>.
+     * 
+     * @param stream
+     */
+    public StreamImageOutputStream(OutputStream stream) {
+        this.stream = stream;
+    }
+
+    @Override
+    public void write(int b) throws IOException {
+        flushBits();
+        stream.write(b);
+        ++streamPos;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) throws IOException {
+        flushBits();
+        stream.write(b, off, len);
+        streamPos += len;
+    }
+
+    @Override
+    public int read() throws IOException {
+        throw new IOException("StreamImageOutputStream can not be read.");
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        throw new IOException("StreamImageOutputStream can not be read.");
+    }
+
+    @Override
+    public void seek(long pos) throws IOException {
+        checkClosed();
+        if (pos != streamPos) {
+            throw new IOException("StreamImageOutputStream can not seek to " + pos);
+        }
+        bitOffset = 0;
+    }
+
+    @Override
+    public void flush() throws IOException {
+        super.flush();
+        stream.flush();
+    }
+
+    @Override
+    public void close() throws IOException {
+        flushBits();
+        stream.flush();
+        super.close();
+    }
+
+}
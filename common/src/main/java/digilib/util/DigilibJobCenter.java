@@ -23,17 +23,27 @@ package digilib.util;
  * Author: Robert Casties (robcast@berlios.de)
  */
 
+import java.util.ArrayList;
+import java.util.LinkedList;
 import java.util.List;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 
 /** Wrapper around ExecutionService.
+ * 
+ * Jobs are queued by job class and dispatched by strict priority 
+ * (INTERACTIVE before BATCH before PREFETCH). Each job class can be 
+ * restricted to a number of threads so lower priority jobs can not
+ * occupy all threads. Jobs with a deadline that has passed when they
+ * are dispatched are dropped (cancelled) instead of run.
  * 
  * @author casties
  *
@@ -41,14 +51,67 @@ import org.apache.log4j.Logger;
 public class DigilibJobCenter<V> {
     /** general logger for this class */
     private static Logger logger = Logger.getLogger("digilib.jobcenter");
-    /** ExecutorService */
-    private ExecutorService executor;
+    
+    /** classes of jobs in order of priority */
+    public static enum JobClass {
+        /** interactive requests (Scaler) */
+        INTERACTIVE,
+        /** batch jobs (PDF images) */
+        BATCH,
+        /** prefetch and warmup jobs */
+        PREFETCH
+    }
+
+    /** job that wants to know when it is dropped after its deadline */
+    public static interface DropListener {
+        /** Called (instead of running the job) when the job was dropped after its deadline. */
+        public void jobDropped();
+    }
+
+    /** job with class and deadline */
+    protected static class Job<T> extends FutureTask<T> {
+        protected JobClass jobClass;
+        protected long deadline;
+        /** the Callable or Runnable of the job */
+        protected Object task;
+
+        public Job(Callable<T> callable, JobClass jobClass, long deadline) {
+            super(callable);
+            this.jobClass = jobClass;
+            this.deadline = deadline;
+            this.task = callable;
+        }
+
+        public Job(Runnable runnable, JobClass jobClass, long deadline) {
+            super(runnable, null);
+            this.jobClass = jobClass;
+            this.deadline = deadline;
+            this.task = runnable;
+        }
+    }
+
+    /** ThreadPoolExecutor */
+    private ThreadPoolExecutor executor;
     /** max number of running threads */
     private int maxThreads = 1;
     /** max number of waiting threads */
     private int maxQueueLen = 50;
     /** label for this job center */
     private String label = "";
+    /** queues of waiting jobs by job class */
+    private List<LinkedList<Job<?>>> queues;
+    /** number of running jobs by job class */
+    private int[] runningJobs;
+    /** total number of running jobs */
+    private int totalRunningJobs = 0;
+    /** max number of running threads by job class */
+    private int[] threadBudgets;
+    /** max number of waiting jobs by job class */
+    private int[] maxQueueLens;
+    /** number of jobs dropped after their deadline */
+    private AtomicInteger droppedJobs = new AtomicInteger(0);
+    /** flag for shut down */
+    private boolean isShutdown = false;
     
     /** Create a DigilibJobcenter with the given number of threads and queue length.
      * If prestart=true it starts the threads in the thread pool.
@@ -63,68 +126,311 @@ public class DigilibJobCenter<V> {
         this.label = (label != null) ? label : "";
         this.maxThreads = maxThreads;
         this.maxQueueLen = maxQueueLen;
-        executor = Executors.newFixedThreadPool(maxThreads);
+        int nc = JobClass.values().length;
+        queues = new ArrayList<LinkedList<Job<?>>>(nc);
+        for (int i = 0; i < nc; ++i) {
+            queues.add(new LinkedList<Job<?>>());
+        }
+        runningJobs = new int[nc];
+        threadBudgets = new int[nc];
+        maxQueueLens = new int[nc];
+        for (int i = 0; i < nc; ++i) {
+            threadBudgets[i] = maxThreads;
+            maxQueueLens[i] = maxQueueLen;
+        }
+        // the executor never has more jobs than threads
+        executor = new ThreadPoolExecutor(maxThreads, maxThreads, 0L, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>());
         if (prestart) {
             // prestart threads so Tomcat's leak protection doesn't complain
-            int st = ((ThreadPoolExecutor)executor).prestartAllCoreThreads();
+            int st = executor.prestartAllCoreThreads();
             logger.debug(label+" prestarting threads: "+st);
         }
     }
     
     /** Submit Callable job that returns a Value to execute.
+     * 
+     * The job is run as INTERACTIVE job without deadline.
      * 
      * @param job
      * @return Future to control the job
      */
     public Future<V> submit(Callable<V> job) {
-        return executor.submit(job);
+        return submit(job, JobClass.INTERACTIVE, 0);
     }
 
     /** Submit Runnable job to execute.
+     * 
+     * The job is run as INTERACTIVE job without deadline.
      * 
      * @param job
      * @return Future to control the job
      */
     public Future<?> submit(Runnable job) {
-        return executor.submit(job);
+        return submit(job, JobClass.INTERACTIVE, 0);
+    }
+
+    /** Submit Callable job of the given job class to execute.
+     * 
+     * The job is dropped if it has not been started when the deadline 
+     * (in ms since the epoch, 0 means no deadline) has passed. A job that
+     * implements DropListener is notified when it is dropped.
+     * 
+     * @param job
+     * @param jobClass
+     * @param deadline
+     * @return Future to control the job
+     */
+    public Future<V> submit(Callable<V> job, JobClass jobClass, long deadline) {
+        Job<V> j = new Job<V>(job, jobClass, deadline);
+        enqueue(j);
+        return j;
+    }
+
+    /** Submit Runnable job of the given job class to execute.
+     * 
+     * The job is dropped if it has not been started when the deadline 
+     * (in ms since the epoch, 0 means no deadline) has passed. A job that
+     * implements DropListener is notified when it is dropped.
+     * 
+     * @param job
+     * @param jobClass
+     * @param deadline
+     * @return Future to control the job
+     */
+    public Future<?> submit(Runnable job, JobClass jobClass, long deadline) {
+        Job<Object> j = new Job<Object>(job, jobClass, deadline);
+        enqueue(j);
+        return j;
+    }
+
+    /** Put the job in the queue of its class and dispatch jobs.
+     * 
+     * @param job
+     */
+    protected void enqueue(Job<?> job) {
+        List<Job<?>> dropped;
+        synchronized (this) {
+            if (isShutdown) {
+                throw new RejectedExecutionException(label+" is shut down.");
+            }
+            queues.get(job.jobClass.ordinal()).add(job);
+            dropped = dispatch();
+        }
+        notifyDropped(dropped);
+    }
+
+    /** Start waiting jobs on free threads by priority.
+     * 
+     * Returns the jobs that were dropped after their deadline (or null).
+     * 
+     * @return
+     */
+    protected synchronized List<Job<?>> dispatch() {
+        List<Job<?>> dropped = null;
+        long now = 0;
+        while (totalRunningJobs < maxThreads) {
+            // find highest priority job class with waiting jobs and free budget
+            Job<?> job = null;
+            for (JobClass jc : JobClass.values()) {
+                int ci = jc.ordinal();
+                if (runningJobs[ci] < threadBudgets[ci] && !queues.get(ci).isEmpty()) {
+                    job = queues.get(ci).removeFirst();
+                    break;
+                }
+            }
+            if (job == null) {
+                break;
+            }
+            if (job.isCancelled()) {
+                continue;
+            }
+            if (job.deadline > 0) {
+                if (now == 0) {
+                    now = System.currentTimeMillis();
+                }
+                if (now > job.deadline) {
+                    logger.debug(label+" dropping "+job.jobClass+" job after deadline.");
+                    job.cancel(false);
+                    droppedJobs.incrementAndGet();
+                    if (dropped == null) {
+                        dropped = new ArrayList<Job<?>>();
+                    }
+                    dropped.add(job);
+                    continue;
+                }
+            }
+            runningJobs[job.jobClass.ordinal()] += 1;
+            totalRunningJobs += 1;
+            final Job<?> runJob = job;
+            executor.execute(new Runnable() {
+                public void run() {
+                    try {
+                        runJob.run();
+                    } finally {
+                        jobFinished(runJob);
+                    }
+                }
+            });
+        }
+        return dropped;
+    }
+
+    /** Notify the dropped jobs (without holding the lock).
+     * 
+     * @param dropped
+     */
+    protected void notifyDropped(List<Job<?>> dropped) {
+        if (dropped == null) {
+            return;
+        }
+        for (Job<?> job : dropped) {
+            if (job.task instanceof DropListener) {
+                try {
+                    ((DropListener) job.task).jobDropped();
+                } catch (RuntimeException e) {
+                    logger.error(label+" error notifying dropped job: "+e);
+                }
+            }
+        }
     }
 
-    /** Returns if the service is overloaded.
+    /** Update running jobs and dispatch waiting jobs.
+     * 
+     * @param job
+     */
+    protected void jobFinished(Job<?> job) {
+        List<Job<?>> dropped = null;
+        synchronized (this) {
+            runningJobs[job.jobClass.ordinal()] -= 1;
+            totalRunningJobs -= 1;
+            if (!isShutdown) {
+                dropped = dispatch();
+            }
+        }
+        notifyDropped(dropped);
+    }
+
+    /** Returns if the service is overloaded (for INTERACTIVE jobs).
      *  
      * @return
      */
     public boolean isBusy() {
-        int jql = getWaitingJobs();
+        return isBusy(JobClass.INTERACTIVE);
+    }
+    
+    /** Returns if the service is overloaded for jobs of the given class.
+     *  
+     * @param jobClass
+     * @return
+     */
+    public boolean isBusy(JobClass jobClass) {
+        int jql = getWaitingJobs(jobClass);
         int jrl = getRunningJobs();
-        logger.debug(label+" isBusy: waiting jobs="+jql+" running jobs="+jrl);
-        return (jql > maxQueueLen);
+        logger.debug(label+" isBusy: waiting "+jobClass+" jobs="+jql+" running jobs="+jrl);
+        return (jql > getMaxQueueLen(jobClass));
     }
     
     /** Returns the number of currently running jobs.
      * @return
      */
-    public int getRunningJobs() {
-        return ((ThreadPoolExecutor)executor).getActiveCount();
+    public synchronized int getRunningJobs() {
+        return totalRunningJobs;
+    }
+    
+    /** Returns the number of currently running jobs of the given class.
+     * @param jobClass
+     * @return
+     */
+    public synchronized int getRunningJobs(JobClass jobClass) {
+        return runningJobs[jobClass.ordinal()];
     }
     
     /** Returns the number of currently waiting jobs.
      * @return
      */
-    public int getWaitingJobs() {
-        BlockingQueue<Runnable> jq = ((ThreadPoolExecutor)executor).getQueue();
-        int jql = jq.size();
+    public synchronized int getWaitingJobs() {
+        int jql = 0;
+        for (LinkedList<Job<?>> q : queues) {
+            jql += q.size();
+        }
         return jql;
     }
 
+    /** Returns the number of currently waiting jobs of the given class.
+     * @param jobClass
+     * @return
+     */
+    public synchronized int getWaitingJobs(JobClass jobClass) {
+        return queues.get(jobClass.ordinal()).size();
+    }
+
+    /** Returns the number of jobs that were dropped after their deadline.
+     * @return
+     */
+    public int getDroppedJobs() {
+        return droppedJobs.get();
+    }
+
+    /** Sets the number of threads. 
+     * Thread budgets that were equal to the old number of threads are changed as well.
+     * 
+     * @param maxThreads
+     */
     public void setMaxThreads(int maxThreads) {
-        this.maxThreads = maxThreads;
+        List<Job<?>> dropped;
+        synchronized (this) {
+            for (int i = 0; i < threadBudgets.length; ++i) {
+                if (threadBudgets[i] == this.maxThreads) {
+                    threadBudgets[i] = maxThreads;
+                }
+            }
+            if (maxThreads > this.maxThreads) {
+                executor.setMaximumPoolSize(maxThreads);
+                executor.setCorePoolSize(maxThreads);
+            } else {
+                executor.setCorePoolSize(maxThreads);
+                executor.setMaximumPoolSize(maxThreads);
+            }
+            this.maxThreads = maxThreads;
+            dropped = dispatch();
+        }
+        notifyDropped(dropped);
     }
 
     public int getMaxThreads() {
         return maxThreads;
     }
 
-    public void setMaxQueueLen(int maxQueueLen) {
+    /** Sets the maximum number of threads used by jobs of the given class.
+     * 
+     * @param jobClass
+     * @param threads
+     */
+    public void setThreadBudget(JobClass jobClass, int threads) {
+        List<Job<?>> dropped;
+        synchronized (this) {
+            threadBudgets[jobClass.ordinal()] = threads;
+            dropped = dispatch();
+        }
+        notifyDropped(dropped);
+    }
+
+    public synchronized int getThreadBudget(JobClass jobClass) {
+        return threadBudgets[jobClass.ordinal()];
+    }
+
+    /** Sets the maximum number of waiting jobs.
+     * Limits of job classes that were equal to the old number are changed as well.
+     * 
+     * @param maxQueueLen
+     */
+    public synchronized void setMaxQueueLen(int maxQueueLen) {
+        for (int i = 0; i < maxQueueLens.length; ++i) {
+            if (maxQueueLens[i] == this.maxQueueLen) {
+                maxQueueLens[i] = maxQueueLen;
+            }
+        }
         this.maxQueueLen = maxQueueLen;
     }
 
@@ -132,13 +438,35 @@ public class DigilibJobCenter<V> {
         return maxQueueLen;
     }
 
+    /** Sets the maximum number of waiting jobs of the given class.
+     * 
+     * @param jobClass
+     * @param maxQueueLen
+     */
+    public synchronized void setMaxQueueLen(JobClass jobClass, int maxQueueLen) {
+        maxQueueLens[jobClass.ordinal()] = maxQueueLen;
+    }
+
+    public synchronized int getMaxQueueLen(JobClass jobClass) {
+        return maxQueueLens[jobClass.ordinal()];
+    }
+
     /** Shuts down the Executor. 
      * Tries to stop running threads and returns a list of waiting threads.
      * 
      * @return
      */
     public List<Runnable> shutdownNow() {
-        return executor.shutdownNow();
+        List<Runnable> waiting = new ArrayList<Runnable>();
+        synchronized (this) {
+            isShutdown = true;
+            for (LinkedList<Job<?>> q : queues) {
+                waiting.addAll(q);
+                q.clear();
+            }
+        }
+        waiting.addAll(executor.shutdownNow());
+        return waiting;
     }
 
 }
@@ -10,6 +10,7 @@ import javax.servlet.ServletContextEvent;
 import digilib.image.DocuImage;
 import digilib.io.FileOps;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
 
 /*
  * #%L
@@ -119,7 +120,22 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         // PDF image worker threads
         int pint = config.getAsInt("pdf-image-worker-threads");
         int pimt = config.getAsInt("pdf-image-max-waiting-threads");
-        DigilibJobCenter<DocuImage> pdfImageExecutor = new DigilibJobCenter<DocuImage>(pint, pimt, false, "servlet.worker.pdfimageexecutor");
+        @SuppressWarnings("unchecked")
+        DigilibJobCenter<DocuImage> pdfImageExecutor = (DigilibJobCenter<DocuImage>) config.getValue(IMAGEEXECUTOR_KEY);
+        if (pdfImageExecutor != null) {
+            // share image threads with Scaler, PDF images run as batch jobs with lower priority
+            // on pint additional threads (the budgets of the other job classes stay the same)
+            int ibt = pdfImageExecutor.getThreadBudget(JobClass.INTERACTIVE);
+            int pbt = pdfImageExecutor.getThreadBudget(JobClass.PREFETCH);
+            pdfImageExecutor.setMaxThreads(pdfImageExecutor.getMaxThreads() + pint);
+            pdfImageExecutor.setThreadBudget(JobClass.INTERACTIVE, ibt);
+            pdfImageExecutor.setThreadBudget(JobClass.PREFETCH, pbt);
+            pdfImageExecutor.setThreadBudget(JobClass.BATCH, pint);
+            // checked by PDFCache before starting a new document
+            pdfImageExecutor.setMaxQueueLen(JobClass.BATCH, pimt);
+        } else {
+            pdfImageExecutor = new DigilibJobCenter<DocuImage>(pint, pimt, false, "servlet.worker.pdfimageexecutor");
+        }
         config.setValue(PDF_IMAGEEXECUTOR_KEY, pdfImageExecutor);
         /*
          * set up temporary directories
@@ -205,7 +221,7 @@ public class PDFServletConfiguration extends DigilibServletConfiguration {
         }
         @SuppressWarnings("unchecked")
         DigilibJobCenter<DocuImage>  pdfImageExecutor = (DigilibJobCenter<DocuImage>) config.getValue(PDF_IMAGEEXECUTOR_KEY);
-        if (pdfImageExecutor != null) {
+        if (pdfImageExecutor != null && pdfImageExecutor != config.getValue(IMAGEEXECUTOR_KEY)) {
             // shut down pdf image thread pool
             List<Runnable> rj = pdfImageExecutor.shutdownNow();
             int nrj = rj.size();
@@ -44,6 +44,7 @@ import digilib.image.ImageWorker;
 import digilib.conf.DigilibConfiguration;
 import digilib.conf.PDFRequest;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
 import digilib.util.NumRange;
 
 public class PDFStreamWorker implements Callable<OutputStream> {
@@ -169,7 +170,7 @@ public class PDFStreamWorker implements Callable<OutputStream> {
 		// create image worker
 		ImageWorker job = new ImageWorker(dlConfig, iji);
 		// submit
-		Future<DocuImage> jobTicket = imageJobCenter.submit(job);
+		Future<DocuImage> jobTicket = imageJobCenter.submit(job, JobClass.BATCH, 0);
 		// wait for result
 		DocuImage img = jobTicket.get();
 		// scale the image
@@ -45,6 +45,7 @@ import digilib.conf.PDFServletConfiguration;
 import digilib.image.DocuImage;
 import digilib.pdf.PDFFileWorker;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
 
 /**
  * A class for handling user requests for pdf documents made from digilib
@@ -171,6 +172,12 @@ public class PDFCache extends HttpServlet {
             PDFStatus status = getStatus(docid);
 
             if (status == PDFStatus.NONEXISTENT) {
+                // check load of workers (pdf-max-waiting-threads, pdf-image-max-waiting-threads)
+                if (pdfJobCenter.isBusy() || pdfImageJobCenter.isBusy(JobClass.BATCH)) {
+                    logger.error("PDFCache overloaded!");
+                    response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                    return;
+                }
                 // not there -- start creation
                 try {
                     createNewPdfDocument(pdfji, docid);
@@ -44,8 +44,13 @@ import org.xml.sax.SAXException;
 
 import digilib.auth.AuthOps;
 import digilib.auth.AuthOpsFactory;
+import digilib.image.DerivativeScheduler;
 import digilib.image.DocuImage;
+import digilib.image.ImageCache;
+import digilib.image.ImageDiskCache;
+import digilib.image.ImageLoaderDocuImage;
 import digilib.io.AliasingDocuDirCache;
+import digilib.io.CompactDocuDirectory;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.DocuDirectoryFactory;
@@ -56,6 +61,7 @@ import digilib.meta.FileMeta;
 import digilib.meta.MetaFactory;
 import digilib.servlet.ServletOps;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
 import digilib.util.Parameter;
 import digilib.util.XMLListLoader;
 
@@ -84,6 +90,12 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
 
     public static final String DIR_CACHE_KEY = "servlet.dir.cache";
 
+    public static final String IMAGECACHE_KEY = "servlet.image.cache";
+
+    public static final String IMAGEDISKCACHE_KEY = "servlet.image.diskcache";
+
+    public static final String DERIVATIVESCHEDULER_KEY = "servlet.derivative.scheduler";
+
     /** the time the webapp (i.e. this class) was loaded */
     public final Long webappStartTime = System.currentTimeMillis();
 
@@ -108,6 +120,12 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter(DIR_CACHE_KEY, null, null, 's');
         // Executor for image operations
         newParameter(IMAGEEXECUTOR_KEY, null, null, 's');
+        // ImageCache instance
+        newParameter(IMAGECACHE_KEY, null, null, 's');
+        // ImageDiskCache instance
+        newParameter(IMAGEDISKCACHE_KEY, null, null, 's');
+        // DerivativeScheduler instance
+        newParameter(DERIVATIVESCHEDULER_KEY, null, null, 's');
         // AuthOps instance
         newParameter(AUTH_OP_KEY, null, null, 's');
         // classes TODO: do we need these as parameters?
@@ -140,12 +158,30 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("use-mapping", Boolean.FALSE, null, 'f');
         // mapping file location
         newParameter("mapping-file", new File("digilib-map.xml"), null, 'f');
+        // maximum number of directories in the directory cache (0 means no limit)
+        newParameter("dir-cache-size", new Integer(0), null, 'f');
+        // interval for checking directories for changes in s (0 means on every request)
+        newParameter("dir-check-interval", new Integer(0), null, 'f');
+        // time to remember nonexistent directories in s (0 means not at all)
+        newParameter("dir-missing-ttl", new Integer(60), null, 'f');
+        // maximum number of remembered nonexistent directories
+        newParameter("dir-missing-size", new Integer(10000), null, 'f');
         // log4j config file location
         newParameter("log-config-file", new File("log4j-config.xml"), null, 'f');
         // number of working threads
         newParameter("worker-threads", new Integer(2), null, 'f');
         // max number of waiting threads
         newParameter("max-waiting-threads", new Integer(20), null, 'f');
+        // size of the in-memory cache for rendered images in MB (0 means no cache)
+        newParameter("img-memcache-size", new Integer(0), null, 'f');
+        // directory of the disk cache for rendered images (if img-diskcache-allowed, empty means in the webapp temp dir)
+        newParameter("img-diskcache-dir", "", null, 'f');
+        // maximum size of the disk cache for rendered images in MB
+        newParameter("img-diskcache-size", new Integer(1000), null, 'f');
+        // create missing prescaled images in the background
+        newParameter("img-derivative-autocreate", Boolean.FALSE, null, 'f');
+        // sizes of the prescaled images (one for each but the first basedir-list entry)
+        newParameter("img-derivative-sizes", "", null, 'f');
         // FileMeta implementation
         newParameter("filemeta-class", "digilib.meta.IndexMetaFileMeta", null, 'f');
         // DirMeta implementation
@@ -154,6 +190,8 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
         newParameter("authops-class", "digilib.auth.PathServletAuthOps", null, 'f');
         // DocuDirectory implementation
         newParameter("docudirectory-class", "digilib.io.BaseDirDocuDirectory", null, 'f');
+        // number of cached ImageFileSets per directory (for CompactDocuDirectory)
+        newParameter("dir-fileset-cache-size", new Integer(1000), null, 'f');
 
     }
 
@@ -300,6 +338,7 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
             config.setValue("servlet.docudirectory.class", docuDirectoryClass);
             DocuDirectoryFactory.setDocuDirectoryClass(docuDirectoryClass);
             DocuDirectoryFactory.setDigilibConfig(this);
+            CompactDocuDirectory.setFileSetCacheSize(config.getAsInt("dir-fileset-cache-size"));
         } catch (ClassNotFoundException e) {
             logger.error("Error setting DocuDirectory class!");
         }
@@ -327,6 +366,12 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 dirCache = new DocuDirCache(FileClass.IMAGE, this);
             }
             config.setValue(DIR_CACHE_KEY, dirCache);
+            // check directories for changes in the background
+            long checkInterval = config.getAsInt("dir-check-interval") * 1000L;
+            if (checkInterval > 0) {
+                DocuDirectory.setCheckInterval(checkInterval);
+                dirCache.startChecker(checkInterval);
+            }
             // useAuthentication
             if (config.getAsBoolean("use-authorization")) {
                 AuthOps authOp = AuthOpsFactory.getAuthOpsInstance();
@@ -343,6 +388,60 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
             int mt = config.getAsInt("max-waiting-threads");
             DigilibJobCenter<DocuImage> imageExecutor = new DigilibJobCenter<DocuImage>(nt, mt, false, IMAGEEXECUTOR_KEY);
             config.setValue(IMAGEEXECUTOR_KEY, imageExecutor);
+            // background creation of prescaled images
+            if (config.getAsBoolean("img-derivative-autocreate")) {
+                String[] dirs = (String[]) config.getValue("basedir-list");
+                String[] ss = config.getAsString("img-derivative-sizes").trim().split("[,:;\\s]+");
+                if (dirs.length > 1 && ss.length == dirs.length - 1) {
+                    try {
+                        File[] scaledDirs = new File[ss.length];
+                        int[] sizes = new int[ss.length];
+                        for (int i = 0; i < ss.length; ++i) {
+                            scaledDirs[i] = new File(dirs[i + 1]);
+                            sizes[i] = Integer.parseInt(ss[i]);
+                        }
+                        // use only one thread for background jobs
+                        imageExecutor.setThreadBudget(JobClass.PREFETCH, 1);
+                        DerivativeScheduler derivativeScheduler = new DerivativeScheduler(imageExecutor, scaledDirs,
+                                sizes, config.getAsInt("default-quality"), config.getAsFloat("subsample-minimum"), mt);
+                        config.setValue(DERIVATIVESCHEDULER_KEY, derivativeScheduler);
+                    } catch (NumberFormatException e) {
+                        logger.error("Invalid img-derivative-sizes: " + e.getMessage());
+                    }
+                } else {
+                    logger.error("img-derivative-sizes does not match basedir-list!");
+                }
+            }
+            // cache for rendered images
+            int mcs = config.getAsInt("img-memcache-size");
+            if (mcs > 0) {
+                ImageCache imageCache = new ImageCache(mcs * 1024L * 1024L);
+                config.setValue(IMAGECACHE_KEY, imageCache);
+            }
+            if (config.getAsBoolean("img-diskcache-allowed")) {
+                File dcd = null;
+                String dcdn = config.getAsString("img-diskcache-dir");
+                if (dcdn != null && dcdn.length() > 0) {
+                    // make relative paths be inside the webapp
+                    dcd = ServletOps.getFile(new File(dcdn), context);
+                }
+                if (dcd == null) {
+                    // use the temp directory of the webapp
+                    File tmp = (File) context.getAttribute("javax.servlet.context.tempdir");
+                    if (tmp == null) {
+                        tmp = new File(System.getProperty("java.io.tmpdir"));
+                    }
+                    dcd = new File(tmp, "img_cache");
+                }
+                long dcs = config.getAsInt("img-diskcache-size") * 1024L * 1024L;
+                try {
+                    ImageDiskCache diskCache = new ImageDiskCache(dcd, dcs);
+                    config.setValue(IMAGEDISKCACHE_KEY, diskCache);
+                    logger.info("Using image disk cache in " + dcd.getAbsolutePath());
+                } catch (IOException e) {
+                    logger.error("Unable to set up image disk cache: " + e.getMessage());
+                }
+            }
             /*
              * set as the servlets main config
              */
@@ -393,6 +492,20 @@ public class DigilibServletConfiguration extends DigilibConfiguration implements
                 logger.error("Still running threads when shutting down image job queue: " + nrj);
             }
         }
+        ImageDiskCache diskCache = (ImageDiskCache) config.getValue(IMAGEDISKCACHE_KEY);
+        if (diskCache != null) {
+            // stop cleanup thread
+            diskCache.shutdown();
+        }
+        DocuDirCache dirCache = (DocuDirCache) config.getValue(DIR_CACHE_KEY);
+        if (dirCache != null) {
+            // stop directory check thread
+            dirCache.shutdown();
+        }
+        DocuDirectory.setCheckInterval(0);
+        // stop parallel rendering threads
+        ImageLoaderDocuImage.setParallelThreads(0);
+        DocuDirectory.setIdentifyThreads(0);
     }
 
 
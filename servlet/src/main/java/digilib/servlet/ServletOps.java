@@ -343,8 +343,36 @@ public class ServletOps {
             img.writeImage(mimeType, outstream);
         } catch (IOException e) {
             throw new ServletException("Error sending image:", e);
+        } finally {
+            // free the image (buffers may be reused)
+            img.dispose();
+        }
+    }
+
+    /**
+     * Write encoded image data to ServletResponse response.
+     * 
+     * @param data
+     * @param mimeType
+     * @param response
+     * @param logger
+     * @throws ServletException Exception on sending data.
+     */
+    public static void sendImageData(byte[] data, String mimeType,
+            HttpServletResponse response, Logger logger) throws ServletException {
+        if (response == null) {
+            logger.error("No response!");
+            return;
+        }
+        logger.debug("sending image data to response. committed=" + response.isCommitted());
+        try {
+            response.setContentType(mimeType);
+            response.setContentLength(data.length);
+            OutputStream outstream = response.getOutputStream();
+            outstream.write(data);
+        } catch (IOException e) {
+            throw new ServletException("Error sending image:", e);
         }
-        // TODO: should we: finally { img.dispose(); }
     }
 
 
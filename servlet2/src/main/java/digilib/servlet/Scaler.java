@@ -43,6 +43,7 @@ import digilib.auth.AuthOpException;
 import digilib.auth.AuthOps;
 import digilib.conf.DigilibServletConfiguration;
 import digilib.conf.DigilibServletRequest;
+import digilib.image.DerivativeScheduler;
 import digilib.image.DocuImage;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
@@ -88,6 +89,9 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** creates missing prescaled images (may be null) */
+    protected DerivativeScheduler derivativeScheduler;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -146,6 +150,9 @@ public class Scaler extends HttpServlet {
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
 
+        // DerivativeScheduler instance
+        derivativeScheduler = (DerivativeScheduler) dlConfig.getValue("servlet.derivative.scheduler");
+
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
         notfoundImgFile = ServletOps.getFile(dlConfig.getAsFile("notfound-image"), context);
@@ -292,6 +299,10 @@ public class Scaler extends HttpServlet {
             }
             // send image
             ServletOps.sendImage(img, mt, response, logger);
+            // create prescaled images if we had to use the hires image
+            if (derivativeScheduler != null && !jobTicket.isHiresOnly()) {
+                derivativeScheduler.schedule(jobTicket.getImageSet(), fileToLoad);
+            }
             logger.debug("Job Processing Time: " + (System.currentTimeMillis() - startTime) + "ms");
 
         } catch (ImageOpException e) {
@@ -27,7 +27,13 @@ package digilib.servlet;
  * Author: Robert Casties (robcast@berlios.de) 19.2.2011
  */
 
+import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import javax.servlet.AsyncContext;
 import javax.servlet.AsyncEvent;
@@ -38,12 +44,18 @@ import javax.servlet.http.HttpServletResponse;
 import org.apache.log4j.Logger;
 
 import digilib.conf.DigilibConfiguration;
+import digilib.image.DerivativeScheduler;
 import digilib.image.DocuImage;
+import digilib.image.ImageCache;
+import digilib.image.ImageDiskCache;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.image.ImageWorker;
+import digilib.io.ImageInput;
+import digilib.io.ImageSet;
 import digilib.servlet.Scaler.ErrMsg;
 import digilib.servlet.Scaler.Error;
+import digilib.util.DigilibJobCenter.DropListener;
 
 /**
  * Worker class for the asynchronous Servlet API.
@@ -51,7 +63,7 @@ import digilib.servlet.Scaler.Error;
  * @author casties
  * 
  */
-public class AsyncServletWorker implements Runnable, AsyncListener {
+public class AsyncServletWorker implements Runnable, AsyncListener, DropListener {
 
     /** the AsyncServlet context */
     private AsyncContext asyncContext;
@@ -64,9 +76,33 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
     private ErrMsg errMsgType = ErrMsg.IMAGE;
     private ImageJobDescription jobinfo;
     /** flag to indicate that the response is completed (on abort) */
-    private boolean completed = false;
+    private volatile boolean completed = false;
     /** AsyncRequest timeout */
     protected static long timeout = 60000l;
+    /** cache for the rendered image (may be null) */
+    private ImageCache imageCache = null;
+    /** disk cache for the rendered image (may be null) */
+    private ImageDiskCache diskCache = null;
+    /** key of the image in the cache */
+    private String cacheKey = null;
+    /** modification time of the source for the cache */
+    private long cacheMTime = 0;
+    /** running jobs by cache key (for coalescing identical requests) */
+    protected static ConcurrentMap<String, AsyncServletWorker> runningJobs = new ConcurrentHashMap<String, AsyncServletWorker>();
+    /** number of requests that were attached to a running job */
+    protected static AtomicInteger coalescedJobs = new AtomicInteger(0);
+    /** workers waiting for the result of this job */
+    private List<AsyncServletWorker> followers = null;
+    /** flag to indicate that this job accepts no more followers */
+    private boolean followersReleased = false;
+    /** flag to indicate that the job has been started */
+    private volatile boolean started = false;
+    /** scheduler for the prescaled images (may be null) */
+    private DerivativeScheduler derivativeScheduler = null;
+    /** ImageSet of the request (for the scheduler) */
+    private ImageSet imageSet = null;
+    /** ImageInput used for the request (for the scheduler) */
+    private ImageInput input = null;
 
     /**
      * @param dlConfig
@@ -91,38 +127,98 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
      */
     @Override
     public void run() {
+        started = true;
+        // workers waiting for the result (until they got it)
+        List<AsyncServletWorker> waiting = null;
+        // flag to indicate that the image has been rendered and sent
+        boolean done = false;
         try {
             // render the image
             DocuImage img = imageWorker.call();
-            if (completed) {
-                logger.debug("AsyncServletWorker already completed (after scaling)!");
+            // no more followers from here on
+            waiting = releaseFollowers();
+            if (img == null) {
+                // the job was stopped (waiting workers get an error)
+                logger.debug("AsyncServletWorker job was stopped.");
+                sendError(Error.IMAGE);
                 return;
             }
-            // forced destination image type
-            String mt = null;
-            if (jobinfo.hasOption("jpg")) {
-                mt = "image/jpeg";
-            } else if (jobinfo.hasOption("png")) {
-                mt = "image/png";
+            if (imageCache != null || diskCache != null || waiting != null) {
+                // encode image and put it in the caches
+                String mt = jobinfo.getOutputMimeType();
+                ByteArrayOutputStream buf = new ByteArrayOutputStream();
+                img.writeImage(mt, buf);
+                img.dispose();
+                byte[] data = buf.toByteArray();
+                if (imageCache != null) {
+                    imageCache.put(cacheKey, cacheMTime, mt, data);
+                }
+                if (waiting != null) {
+                    // send the same image to the waiting workers
+                    for (AsyncServletWorker f : waiting) {
+                        try {
+                            f.sendImageData(data, mt);
+                        } catch (RuntimeException e) {
+                            logger.error("Error completing coalesced request: " + e);
+                        }
+                    }
+                    waiting = null;
+                }
+                if (completed) {
+                    // our own client is gone
+                    logger.debug("AsyncServletWorker already completed (after scaling)!");
+                } else {
+                    // send image data
+                    ServletOps.sendImageData(data, mt,
+                            (HttpServletResponse) asyncContext.getResponse(), logger);
+                }
+                if (diskCache != null) {
+                    // write to disk after sending
+                    diskCache.put(cacheKey, cacheMTime, mt, data);
+                }
+            } else if (completed) {
+                logger.debug("AsyncServletWorker already completed (after scaling)!");
+                img.dispose();
+            } else {
+                // forced destination image type
+                String mt = null;
+                if (jobinfo.hasOption("jpg")) {
+                    mt = "image/jpeg";
+                } else if (jobinfo.hasOption("png")) {
+                    mt = "image/png";
+                }
+                // send image
+                ServletOps.sendImage(img, mt,
+                        (HttpServletResponse) asyncContext.getResponse(), logger);
             }
-            // send image
-            ServletOps.sendImage(img, mt,
-                    (HttpServletResponse) asyncContext.getResponse(), logger);
             logger.debug("Job done in: "
                     + (System.currentTimeMillis() - startTime) + "ms");
+            done = true;
         } catch (ImageOpException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.IMAGE, null,
-                    (HttpServletResponse) asyncContext.getResponse());
+            // the response may be completed already if the job was aborted
+            sendError(Error.IMAGE);
         } catch (IOException e) {
             logger.error(e.getClass() + ": " + e.getMessage());
-            Scaler.digilibError(errMsgType, Error.FILE, null,
-                    (HttpServletResponse) asyncContext.getResponse());
+            sendError(Error.FILE);
         } catch (ServletException e) {
             logger.error("Servlet error: ", e);
         } catch (Exception e) {
             logger.error("Other error: ", e);
         } finally {
+            // make sure the waiting workers get a response
+            if (waiting == null) {
+                waiting = releaseFollowers();
+            }
+            if (waiting != null) {
+                for (AsyncServletWorker f : waiting) {
+                    try {
+                        f.sendError(Error.IMAGE);
+                    } catch (RuntimeException e) {
+                        logger.error("Error completing coalesced request: " + e);
+                    }
+                }
+            }
             if (completed) {
                 logger.debug("AsyncServletWorker already completed (finally)!");
             } else {
@@ -131,6 +227,14 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
                 this.completed = true;
                 asyncContext.complete();
             }
+            if (done && derivativeScheduler != null) {
+                // create prescaled images after the response is complete
+                try {
+                    derivativeScheduler.schedule(imageSet, input);
+                } catch (RuntimeException e) {
+                    logger.error("Error scheduling prescaled images: " + e);
+                }
+            }
         }
 
     }
@@ -154,7 +258,7 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
+        stopJob();
         this.completed = true;
         Scaler.digilibError(errMsgType, Error.UNKNOWN, null,
                 (HttpServletResponse) asyncContext.getResponse());
@@ -170,13 +274,206 @@ public class AsyncServletWorker implements Runnable, AsyncListener {
             logger.debug("AsyncServletWorker already completed (TimeOut)!");
             return;
         }
-        imageWorker.stopNow();
+        stopJob();
         this.completed = true;
         Scaler.digilibError(errMsgType, Error.UNKNOWN, "ERROR: timeout rendering image!",
                 (HttpServletResponse) asyncContext.getResponse());
         asyncContext.complete();
     }
 
+    /**
+     * The job was dropped by the job center because it could not start before
+     * its deadline: waiting workers and the client get an error.
+     * 
+     * @see digilib.util.DigilibJobCenter.DropListener#jobDropped()
+     */
+    @Override
+    public void jobDropped() {
+        logger.error("AsyncServletWorker dropped after "
+                + (System.currentTimeMillis() - startTime)
+                + "ms waiting for a thread! (increase worker-threads?)");
+        stopJob();
+        sendError(Error.UNKNOWN);
+    }
+
+    /**
+     * Set the key of the job. Put the rendered image in the ImageCache and/or
+     * ImageDiskCache under the key.
+     * 
+     * @param imageCache
+     *            (may be null)
+     * @param diskCache
+     *            (may be null)
+     * @param key
+     * @param mtime
+     *            modification time of the source
+     */
+    public void setImageCache(ImageCache imageCache, ImageDiskCache diskCache, String key, long mtime) {
+        this.imageCache = imageCache;
+        this.diskCache = diskCache;
+        this.cacheKey = key;
+        this.cacheMTime = mtime;
+    }
+
+    /**
+     * Set the DerivativeScheduler that creates the prescaled images for the
+     * ImageInput of the request after the image has been sent.
+     * 
+     * @param scheduler
+     * @param imageSet
+     * @param input
+     *            the ImageInput used for the request
+     */
+    public void setDerivativeScheduler(DerivativeScheduler scheduler, ImageSet imageSet, ImageInput input) {
+        this.derivativeScheduler = scheduler;
+        this.imageSet = imageSet;
+        this.input = input;
+    }
+
+    /**
+     * Stops the ImageWorker unless other workers wait for the result.
+     * 
+     * If the job has not been started (it will not be started after the
+     * timeout) it is unregistered and waiting workers get an error.
+     */
+    protected void stopJob() {
+        if (!started) {
+            List<AsyncServletWorker> waiting = releaseFollowers();
+            if (waiting != null) {
+                for (AsyncServletWorker f : waiting) {
+                    try {
+                        f.sendError(Error.UNKNOWN);
+                    } catch (RuntimeException e) {
+                        logger.error("Error completing coalesced request: " + e);
+                    }
+                }
+            }
+            imageWorker.stopNow();
+            return;
+        }
+        synchronized (this) {
+            if (followers != null) {
+                // keep running for the waiting workers
+                return;
+            }
+        }
+        imageWorker.stopNow();
+    }
+
+    /**
+     * Registers this worker as the running job for its cache key.
+     * 
+     * Returns the worker that is already running the same job or null if this
+     * worker was registered.
+     * 
+     * @return
+     */
+    public AsyncServletWorker registerRunningJob() {
+        if (cacheKey == null) {
+            return null;
+        }
+        return runningJobs.putIfAbsent(cacheKey, this);
+    }
+
+    /**
+     * Returns the running worker for the given cache key (or null).
+     * 
+     * @param key
+     * @return
+     */
+    public static AsyncServletWorker getRunningJob(String key) {
+        if (key == null) {
+            return null;
+        }
+        return runningJobs.get(key);
+    }
+
+    /**
+     * Adds a worker that waits for the result of this job instead of rendering
+     * the same image itself.
+     * 
+     * Returns false if this job does not accept followers any more.
+     * 
+     * @param follower
+     * @return
+     */
+    public synchronized boolean addFollower(AsyncServletWorker follower) {
+        if (followersReleased) {
+            return false;
+        }
+        if (followers == null) {
+            followers = new ArrayList<AsyncServletWorker>();
+        }
+        followers.add(follower);
+        coalescedJobs.incrementAndGet();
+        return true;
+    }
+
+    /**
+     * Removes this job from the running jobs and returns the waiting workers
+     * (or null). No more followers are accepted after this.
+     * 
+     * @return
+     */
+    protected synchronized List<AsyncServletWorker> releaseFollowers() {
+        if (!followersReleased) {
+            followersReleased = true;
+            if (cacheKey != null) {
+                runningJobs.remove(cacheKey, this);
+            }
+        }
+        List<AsyncServletWorker> fl = followers;
+        followers = null;
+        return fl;
+    }
+
+    /**
+     * Sends the encoded image data of another job and completes the response.
+     * 
+     * @param data
+     * @param mt
+     */
+    protected void sendImageData(byte[] data, String mt) {
+        if (completed) {
+            logger.debug("AsyncServletWorker follower already completed!");
+            return;
+        }
+        try {
+            ServletOps.sendImageData(data, mt,
+                    (HttpServletResponse) asyncContext.getResponse(), logger);
+            logger.debug("Coalesced job done in: "
+                    + (System.currentTimeMillis() - startTime) + "ms");
+        } catch (Exception e) {
+            logger.error("Error sending coalesced image: " + e.getMessage());
+        } finally {
+            this.completed = true;
+            asyncContext.complete();
+        }
+    }
+
+    /**
+     * Sends an error and completes the response (unless it is already
+     * completed).
+     * 
+     * @param type
+     */
+    protected void sendError(Error type) {
+        if (completed) {
+            return;
+        }
+        this.completed = true;
+        Scaler.digilibError(errMsgType, type, null,
+                (HttpServletResponse) asyncContext.getResponse());
+        asyncContext.complete();
+    }
+
+    /**
+     * @return the number of requests that were attached to a running job
+     */
+    public static int getCoalescedJobs() {
+        return coalescedJobs.get();
+    }
+
     public static long getTimeout() {
         return timeout;
     }
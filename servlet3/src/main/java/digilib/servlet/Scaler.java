@@ -27,6 +27,7 @@ package digilib.servlet;
  */
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.IOException;
 
 import javax.servlet.AsyncContext;
@@ -46,12 +47,16 @@ import digilib.conf.DigilibConfiguration;
 import digilib.conf.DigilibServlet3Configuration;
 import digilib.conf.DigilibServletRequest;
 import digilib.image.DocuImage;
+import digilib.image.ImageCache;
+import digilib.image.DerivativeScheduler;
+import digilib.image.ImageDiskCache;
 import digilib.image.ImageJobDescription;
 import digilib.image.ImageOpException;
 import digilib.io.DocuDirCache;
 import digilib.io.DocuDirectory;
 import digilib.io.ImageInput;
 import digilib.util.DigilibJobCenter;
+import digilib.util.DigilibJobCenter.JobClass;
 
 @WebServlet(name = "Scaler", urlPatterns = { "/Scaler", "/servlet/Scaler/*" }, asyncSupported = true)
 public class Scaler extends HttpServlet {
@@ -89,6 +94,15 @@ public class Scaler extends HttpServlet {
     /** Image executor */
     protected DigilibJobCenter<DocuImage> imageJobCenter;
 
+    /** cache for rendered images (may be null) */
+    protected ImageCache imageCache;
+
+    /** disk cache for rendered images (may be null) */
+    protected ImageDiskCache diskCache;
+
+    /** creates missing prescaled images (may be null) */
+    protected DerivativeScheduler derivativeScheduler;
+
     /** authentication error image file */
     public static File denyImgFile;
 
@@ -145,6 +159,15 @@ public class Scaler extends HttpServlet {
         // Executor
         imageJobCenter = (DigilibJobCenter<DocuImage>) dlConfig.getValue("servlet.worker.imageexecutor");
 
+        // ImageCache instance
+        imageCache = (ImageCache) dlConfig.getValue("servlet.image.cache");
+
+        // ImageDiskCache instance
+        diskCache = (ImageDiskCache) dlConfig.getValue("servlet.image.diskcache");
+
+        // DerivativeScheduler instance
+        derivativeScheduler = (DerivativeScheduler) dlConfig.getValue("servlet.derivative.scheduler");
+
         denyImgFile = ServletOps.getFile(dlConfig.getAsFile("denied-image"), context);
         errorImgFile = ServletOps.getFile(dlConfig.getAsFile("error-image"), context);
         notfoundImgFile = ServletOps.getFile(dlConfig.getAsFile("notfound-image"), context);
@@ -295,8 +318,42 @@ public class Scaler extends HttpServlet {
                 return;
             }
 
-            // check load of workers
-            if (imageJobCenter.isBusy()) {
+            // check if the rendered image is in the cache
+            String cacheKey = jobTicket.getCacheKey();
+            long cacheMTime = 0;
+            if (imageCache != null || diskCache != null) {
+                cacheMTime = jobTicket.getFileDirectory().getDirMTime();
+            }
+            if (imageCache != null) {
+                ImageCache.Entry img = imageCache.get(cacheKey, cacheMTime);
+                if (img != null) {
+                    logger.debug("Sending image from cache.");
+                    ServletOps.sendImageData(img.getData(), img.getMimeType(), response, logger);
+                    logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                    return;
+                }
+            }
+            if (diskCache != null) {
+                String mt = jobTicket.getOutputMimeType();
+                File img = diskCache.get(cacheKey, cacheMTime, mt);
+                if (img != null) {
+                    try {
+                        logger.debug("Sending image from disk cache.");
+                        ServletOps.sendFile(img, mt, null, response, logger);
+                        logger.info("Done in " + (System.currentTimeMillis() - startTime) + "ms");
+                        return;
+                    } catch (FileNotFoundException e) {
+                        // file was evicted in the meantime
+                        logger.debug("Image in disk cache disappeared.");
+                    }
+                }
+            }
+
+            // is the same image already being rendered?
+            AsyncServletWorker runningJob = AsyncServletWorker.getRunningJob(cacheKey);
+
+            // check load of workers (waiting for a running job is free)
+            if (runningJob == null && imageJobCenter.isBusy()) {
                 logger.error("Servlet overloaded!");
                 response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
                 return;
@@ -306,10 +363,46 @@ public class Scaler extends HttpServlet {
             AsyncContext asyncCtx = request.startAsync(request, response);
             // create job
             AsyncServletWorker job = new AsyncServletWorker(dlConfig, jobTicket, asyncCtx, errMsgType, startTime);
+            // set key and put the result in the caches
+            job.setImageCache(imageCache, diskCache, cacheKey, cacheMTime);
+            // create prescaled images after sending if we had to use the hires image
+            if (derivativeScheduler != null && !jobTicket.isHiresOnly()) {
+                job.setDerivativeScheduler(derivativeScheduler, jobTicket.getImageSet(), fileToLoad);
+            }
             // AsyncServletWorker is its own AsyncListener
             asyncCtx.addListener(job);
-            // submit job
-            imageJobCenter.submit(job);
+            // load of workers is checked (or waiting for a running job)
+            boolean loadChecked = (runningJob == null);
+            while (true) {
+                if (runningJob == null) {
+                    if (!loadChecked) {
+                        // the running job was finished: check load again
+                        if (imageJobCenter.isBusy()) {
+                            logger.error("Servlet overloaded!");
+                            response.sendError(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+                            asyncCtx.complete();
+                            return;
+                        }
+                        loadChecked = true;
+                    }
+                    runningJob = job.registerRunningJob();
+                    if (runningJob == null) {
+                        // this job is registered
+                        break;
+                    }
+                }
+                if (runningJob.addFollower(job)) {
+                    // wait for the result of the running job
+                    logger.debug("Attached to running job.");
+                    return;
+                }
+                // the running job accepts no more followers: try again
+                runningJob = null;
+            }
+            // submit job (drop it if it can not start before the request times out)
+            long timeout = AsyncServletWorker.getTimeout();
+            long deadline = (timeout > 0) ? startTime + timeout : 0;
+            imageJobCenter.submit(job, JobClass.INTERACTIVE, deadline);
             // we're done for now
 
         } catch (ImageOpException e) {
@@ -25,6 +25,9 @@
           digilib.conf.DigilibServletConfiguration,
           digilib.conf.DigilibServletRequest,
           digilib.io.DocuDirCache,
+          digilib.image.ImageCache,
+          digilib.image.ImageDiskCache,
+          digilib.image.DerivativeScheduler,
           digilib.image.DocuImageFactory,
           java.io.File"%>
 <%!
@@ -55,6 +58,12 @@ dlRequest.setValue("pt", docBean.getNumPages(dlRequest));
 DocuDirCache dirCache = (DocuDirCache) dlConfig.getValue("servlet.dir.cache");
 // image JobCenter
 DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.worker.imageexecutor");        
+// image cache
+ImageCache imageCache = (ImageCache) dlConfig.getValue("servlet.image.cache");
+// image disk cache
+ImageDiskCache diskCache = (ImageDiskCache) dlConfig.getValue("servlet.image.diskcache");
+// prescaled image creation
+DerivativeScheduler derivativeScheduler = (DerivativeScheduler) dlConfig.getValue("servlet.derivative.scheduler");
 
 %>
 
@@ -125,6 +134,10 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
     <td>currently running</td><td><b><%= imageProcessor.getRunningJobs() %></b></td>
     <td></td>
   </tr>
+  <tr>
+    <td>dropped</td><td><b><%= imageProcessor.getDroppedJobs() %></b></td>
+    <td>(not started before timeout)</td>
+  </tr>
 </table>
 
 <h2>Webapp</h2>
@@ -154,8 +167,95 @@ DigilibJobCenter imageProcessor =  (DigilibJobCenter)dlConfig.getValue("servlet.
 	<td>misses</td><td><b><%= dirCache.getMisses() %></b></td>
     <td></td>
   </tr>
+  <tr>
+	<td>evictions</td><td><b><%= dirCache.getEvictions() %></b></td>
+    <td>(maximum <%= dirCache.getMaxDirs() %> directories, 0 means no limit)</td>
+  </tr>
+  <tr>
+	<td>nonexistent</td><td><b><%= dirCache.getMissingSize() %></b></td>
+    <td>remembered nonexistent directories (<%= dirCache.getMissingHits() %> hits)</td>
+  </tr>
 </table>
 
+<%
+if (imageCache != null) {
+%>
+<h2>Image cache</h2>
+
+<table>
+  <tr>
+	<td>size</td><td><b><%= imageCache.size() %></b></td>
+    <td>images</td>
+  </tr>
+  <tr>
+    <td></td><td><b><%= imageCache.getSize() %></b></td>
+    <td>bytes (of <%= imageCache.getMaxSize() %>)</td>
+  </tr>
+  <tr>
+	<td>hits</td><td><b><%= imageCache.getHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= imageCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>evictions</td><td><b><%= imageCache.getEvictions() %></b></td>
+    <td></td>
+  </tr>
+</table>
+<%
+}
+if (diskCache != null) {
+%>
+<h2>Image disk cache</h2>
+
+<table>
+  <tr>
+	<td>directory</td><td><b><%= diskCache.getCacheDir().getAbsolutePath() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>size</td><td><b><%= diskCache.getSize() %></b></td>
+    <td>bytes (of <%= diskCache.getMaxSize() %>)</td>
+  </tr>
+  <tr>
+	<td>hits</td><td><b><%= diskCache.getHits() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>misses</td><td><b><%= diskCache.getMisses() %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>evictions</td><td><b><%= diskCache.getEvictions() %></b></td>
+    <td></td>
+  </tr>
+</table>
+<%
+}
+if (derivativeScheduler != null) {
+%>
+<h2>Prescaled image creation</h2>
+
+<table>
+  <tr>
+	<td>sizes</td><td><b><%= java.util.Arrays.toString(derivativeScheduler.getSizes()) %></b></td>
+    <td></td>
+  </tr>
+  <tr>
+	<td>pending</td><td><b><%= derivativeScheduler.getPending() %></b></td>
+    <td>images</td>
+  </tr>
+  <tr>
+	<td>created</td><td><b><%= derivativeScheduler.getCreated() %></b></td>
+    <td>files</td>
+  </tr>
+</table>
+<%
+}
+%>
+
 <h2>JVM configuration</h2>
 
 <table>